@@ -1,50 +1,194 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.ref.Cleaner;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Map;
 import java.util.Scanner;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.text.ParseException;
 
 class User {
     private String username;
     private String password;
-    private List<Account> accounts;
+    private Map<String, Account> accounts;
+    private Map<String, Map<String, Account>> accountsByType;
 
     public User(String username, String password) {
         this.username = username;
         this.password = password;
-        this.accounts = new ArrayList<>();
+        this.accounts = new LinkedHashMap<>();
+        this.accountsByType = new HashMap<>();
     }
 
-    public void addAccount(Account account) {
-        accounts.add(account);
+    public synchronized boolean addAccount(Account account) {
+        if (accounts.putIfAbsent(account.getAccountNumber(), account) != null) {
+            return false;
+        }
+        accountsByType.computeIfAbsent(account.getAccountType(), type -> new LinkedHashMap<>())
+                .put(account.getAccountNumber(), account);
+        return true;
     }
 
-    public void removeAccount(Account account) {
-        accounts.remove(account);
+    public synchronized void removeAccount(Account account) {
+        if (accounts.remove(account.getAccountNumber(), account)) {
+            accountsByType.get(account.getAccountType()).remove(account.getAccountNumber());
+        }
     }
 
-    public Account getAccount(String accountNumber) {
-        for (Account account : accounts) {
-            if (account.getAccountNumber().equals(accountNumber)) {
-                return account;
-            }
+    public synchronized List<Account> getAccounts() {
+        return new ArrayList<>(accounts.values());
+    }
+
+    public synchronized List<Account> getAccountsByType(String accountType) {
+        Map<String, Account> ofType = accountsByType.get(accountType);
+        return ofType == null ? new ArrayList<>() : new ArrayList<>(ofType.values());
+    }
+
+    public synchronized Account getAccount(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+}
+
+final class Money {
+    static final int SCALE = 2;
+    static final long MINOR_PER_MAJOR = 100;
+    private static final double MAX_MAJOR = Long.MAX_VALUE / (double) MINOR_PER_MAJOR;
+
+    private Money() {
+    }
+
+    static boolean isValid(double amount) {
+        return Math.abs(amount) < MAX_MAJOR;
+    }
+
+    static long ofMajor(double amount) {
+        if (!isValid(amount)) {
+            throw new ArithmeticException("Amount out of range: " + amount);
         }
-        return null;
+        return Math.round(amount * MINOR_PER_MAJOR);
+    }
+
+    static double toMajor(long amountMinor) {
+        return amountMinor / (double) MINOR_PER_MAJOR;
+    }
+
+    static long add(long amountMinor, long otherMinor) {
+        return Math.addExact(amountMinor, otherMinor);
+    }
+
+    static long subtract(long amountMinor, long otherMinor) {
+        return Math.subtractExact(amountMinor, otherMinor);
+    }
+
+    static long negate(long amountMinor) {
+        return Math.negateExact(amountMinor);
+    }
+
+    static long multiply(long amountMinor, long factor) {
+        return Math.multiplyExact(amountMinor, factor);
+    }
+
+    static StringBuilder appendTo(StringBuilder out, long amountMinor) {
+        long major = amountMinor / MINOR_PER_MAJOR;
+        int minor = (int) Math.abs(amountMinor % MINOR_PER_MAJOR);
+        if (amountMinor < 0 && major == 0) {
+            out.append('-');
+        }
+        out.append(major).append('.');
+        if (minor < 10) {
+            out.append('0');
+        }
+        return out.append(minor);
+    }
+
+    static String format(long amountMinor) {
+        return appendTo(new StringBuilder(24), amountMinor).toString();
     }
 }
 
 abstract class Account {
+    static final int OK = 0;
+    static final int INSUFFICIENT_FUNDS = 1;
+
     private String accountNumber;
     private String accountType;
-    private double balance;
+    private final AtomicLong balance;
 
     public Account(String accountNumber, String accountType, double initialBalance) {
+        this(Money.ofMajor(initialBalance), accountNumber, accountType);
+    }
+
+    protected Account(long initialBalanceMinor, String accountNumber, String accountType) {
         this.accountNumber = accountNumber;
         this.accountType = accountType;
-        this.balance = initialBalance;
+        this.balance = new AtomicLong(initialBalanceMinor);
     }
 
     public String getAccountNumber() {
@@ -56,193 +200,4799 @@ abstract class Account {
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toMajor(balance.get());
+    }
+
+    public long getBalanceMinor() {
+        return balance.get();
     }
 
     public void deposit(double amount) {
-        balance += amount;
+        depositMinor(Money.ofMajor(amount));
+    }
+
+    public int withdraw(double amount) {
+        return withdrawMinor(Money.ofMajor(amount));
+    }
+
+    public void depositMinor(long amountMinor) {
+        addToBalance(amountMinor);
+        if (Metrics.ENABLED) {
+            Metrics.DEPOSITS.increment();
+        }
+    }
+
+    public int withdrawMinor(long amountMinor) {
+        long floor = getMinimumBalanceMinor();
+        long current = balance.get();
+        while (true) {
+            long next = Money.subtract(current, amountMinor);
+            if (next < floor) {
+                return INSUFFICIENT_FUNDS;
+            }
+            long witness = balance.compareAndExchange(current, next);
+            if (witness == current) {
+                break;
+            }
+            current = witness;
+        }
+        if (Metrics.ENABLED) {
+            Metrics.WITHDRAWALS.increment();
+        }
+        return OK;
+    }
+
+    void postWithdrawalMinor(long amountMinor) {
+        addToBalance(Money.negate(amountMinor));
+        if (Metrics.ENABLED) {
+            Metrics.WITHDRAWALS.increment();
+        }
+    }
+
+    private void addToBalance(long amountMinor) {
+        long current = balance.get();
+        while (true) {
+            long witness = balance.compareAndExchange(current, Money.add(current, amountMinor));
+            if (witness == current) {
+                return;
+            }
+            current = witness;
+        }
+    }
+
+    protected long getMinimumBalanceMinor() {
+        return Long.MIN_VALUE;
+    }
+
+    public abstract String getAccountInfo();
+
+    public void displayAccountInfo() {
+        System.out.println(getAccountInfo());
+    }
+
+    public int processTransaction(Transaction transaction) {
+        return transaction.processTransaction(this);
+    }
+}
+
+class SavingsAccount extends Account {
+    private double interestRate;
+
+    public SavingsAccount(String accountNumber, double initialBalance, double interestRate) {
+        super(accountNumber, "Savings", initialBalance);
+        this.interestRate = interestRate;
+    }
+
+    private SavingsAccount(long initialBalanceMinor, String accountNumber, double interestRate) {
+        super(initialBalanceMinor, accountNumber, "Savings");
+        this.interestRate = interestRate;
+    }
+
+    public static SavingsAccount ofMinor(String accountNumber, long initialBalanceMinor, double interestRate) {
+        return new SavingsAccount(initialBalanceMinor, accountNumber, interestRate);
+    }
+
+    public double getInterestRate() {
+        return interestRate;
+    }
+
+    @Override
+    public String getAccountInfo() {
+        StringBuilder info = new StringBuilder(96).append("Savings Account - Account Number: ").append(getAccountNumber())
+                .append(", Balance: ");
+        return Money.appendTo(info, getBalanceMinor()).append(", Interest Rate: ").append(interestRate).toString();
+    }
+}
+
+class CheckingAccount extends Account {
+    private long overdraftLimitMinor;
+
+    public CheckingAccount(String accountNumber, double initialBalance, double overdraftLimit) {
+        super(accountNumber, "Checking", initialBalance);
+        this.overdraftLimitMinor = Money.ofMajor(overdraftLimit);
+    }
+
+    private CheckingAccount(long initialBalanceMinor, String accountNumber, double overdraftLimit) {
+        super(initialBalanceMinor, accountNumber, "Checking");
+        this.overdraftLimitMinor = Money.ofMajor(overdraftLimit);
+    }
+
+    public static CheckingAccount ofMinor(String accountNumber, long initialBalanceMinor, double overdraftLimit) {
+        return new CheckingAccount(initialBalanceMinor, accountNumber, overdraftLimit);
+    }
+
+    public double getOverdraftLimit() {
+        return Money.toMajor(overdraftLimitMinor);
+    }
+
+    public long getOverdraftLimitMinor() {
+        return overdraftLimitMinor;
+    }
+
+    @Override
+    protected long getMinimumBalanceMinor() {
+        return -overdraftLimitMinor;
+    }
+
+    @Override
+    public String getAccountInfo() {
+        StringBuilder info = new StringBuilder(96).append("Checking Account - Account Number: ")
+                .append(getAccountNumber()).append(", Balance: ");
+        Money.appendTo(info, getBalanceMinor()).append(", Overdraft Limit: ");
+        return Money.appendTo(info, overdraftLimitMinor).toString();
+    }
+}
+
+final class DateParser {
+    static final int INVALID = Integer.MIN_VALUE;
+    private static final int LENGTH = 10;
+
+    private DateParser() {
+    }
+
+    public static int parseEpochDay(CharSequence text) throws ParseException {
+        if (text.length() != LENGTH) {
+            throw new ParseException("expected yyyy-MM-dd, got " + text.length() + " characters",
+                    Math.min(text.length(), LENGTH));
+        }
+        int year = parseDigits(text, 0, 4);
+        expectDash(text, 4);
+        int month = parseDigits(text, 5, 7);
+        expectDash(text, 7);
+        int day = parseDigits(text, 8, 10);
+        if (year < 1) {
+            throw new ParseException("year out of range", 0);
+        }
+        if (month < 1 || month > 12) {
+            throw new ParseException("month out of range", 5);
+        }
+        if (day < 1 || day > daysInMonth(year, month)) {
+            throw new ParseException("day out of range", 8);
+        }
+        return fromCivil(year, month, day);
+    }
+
+    private static int parseDigits(CharSequence text, int start, int end) throws ParseException {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException("expected a digit at position " + i, i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static void expectDash(CharSequence text, int position) throws ParseException {
+        if (text.charAt(position) != '-') {
+            throw new ParseException("expected '-' at position " + position, position);
+        }
+    }
+
+    public static int parseEpochDay(byte[] bytes, int start, int end) {
+        if (end - start != LENGTH || bytes[start + 4] != '-' || bytes[start + 7] != '-') {
+            return INVALID;
+        }
+        int year = parseDigits(bytes, start, start + 4);
+        int month = parseDigits(bytes, start + 5, start + 7);
+        int day = parseDigits(bytes, start + 8, start + 10);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID;
+        }
+        return fromCivil(year, month, day);
+    }
+
+    private static int parseDigits(byte[] bytes, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    public static int fromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    public static int toEpochDay(Date date) {
+        return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    public static Date toDate(int epochDay) {
+        return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+}
+
+final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("budget.metrics");
+
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    static final LatencyHistogram BUDGET_ADD = timer("budget.addTransaction");
+    static final LatencyHistogram BUDGET_ADD_BATCH = timer("budget.addBatch");
+    static final LatencyHistogram BUDGET_REMOVE = timer("budget.removeTransaction");
+    static final LatencyHistogram PARSE_DATE = timer("parse.date");
+    static final LatencyHistogram CSV_IMPORT = timer("csv.import");
+    static final LatencyHistogram JOURNAL_COMMIT = timer("journal.commit");
+    static final LatencyHistogram SNAPSHOT_WRITE = timer("snapshot.write");
+    static final LongAdder DEPOSITS = counter("account.deposits");
+    static final LongAdder WITHDRAWALS = counter("account.withdrawals");
+    static final LongAdder CSV_ROWS_IMPORTED = counter("csv.rows.imported");
+    static final LongAdder CSV_ROWS_REJECTED = counter("csv.rows.rejected");
+    static final LongAdder CSV_ROWS_DUPLICATE = counter("csv.rows.duplicate");
+    static final LongAdder LIVE_TRANSACTIONS = counter("ledger.transactions");
+
+    static {
+        gauge("ledger.estimatedBytes", () -> LIVE_TRANSACTIONS.sum() * TransactionStore.BYTES_PER_ROW);
+        gauge("heap.usedBytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
+
+    private Metrics() {
+    }
+
+    static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    static LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-28s %10s %10s %10s %10s %10s %10s%n", "timer", "count", "mean",
+                "p50", "p99", "p99.9", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.ROOT, "%-28s %10d %10s %10s %10s %10s %10s%n", entry.getKey(),
+                    histogram.getCount(), formatNanos(histogram.getMean()),
+                    formatNanos(histogram.getValueAtPercentile(50)), formatNanos(histogram.getValueAtPercentile(99)),
+                    formatNanos(histogram.getValueAtPercentile(99.9)), formatNanos(histogram.getMax())));
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            report.append(String.format(Locale.ROOT, "%-28s %,d%n", entry.getKey(), entry.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            report.append(String.format(Locale.ROOT, "%-28s %,d%n", entry.getKey(), entry.getValue().getAsLong()));
+        }
+        return report.toString();
+    }
+
+    static void startDump(Path path, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.write(temporary, ("# " + java.time.Instant.now() + System.lineSeparator() + report())
+                        .getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Could not write metrics to " + path + ": " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    static String formatNanos(double nanos) {
+        if (nanos < 1_000) {
+            return String.format(Locale.ROOT, "%.0fns", nanos);
+        } else if (nanos < 1_000_000) {
+            return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+        }
+        return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+    }
+}
+
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : (double) sum.sum() / samples;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        long samples = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            samples += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * samples));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_HALF - 1;
+        long subBucket = bucket - (long) shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
     }
+}
+
+final class DescriptionDictionary {
+    static final int NOT_INTERNED = -1;
+    static final DescriptionDictionary SHARED =
+            new DescriptionDictionary(Integer.getInteger("budget.dictionary.maxEntries", 1 << 20));
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int ENTRY_OVERHEAD_BYTES = 72;
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[][] chunks = new String[0][];
+    private volatile int size;
+    private volatile long estimatedBytes;
+    private final LongAdder overflows = new LongAdder();
+
+    DescriptionDictionary(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    static {
+        Metrics.gauge("dictionary.entries", () -> SHARED.size());
+        Metrics.gauge("dictionary.estimatedBytes", () -> SHARED.getEstimatedBytes());
+        Metrics.gauge("dictionary.overflows", () -> SHARED.getOverflowCount());
+    }
+
+    public int intern(String text) {
+        Integer id = ids.get(text);
+        return id != null ? id : add(text);
+    }
+
+    private synchronized int add(String text) {
+        Integer existing = ids.get(text);
+        if (existing != null) {
+            return existing;
+        }
+        if (size == maxEntries) {
+            overflows.increment();
+            return NOT_INTERNED;
+        }
+        int id = size;
+        String[][] current = chunks;
+        if (id >>> CHUNK_SHIFT == current.length) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = new String[CHUNK_SIZE];
+        }
+        current[id >>> CHUNK_SHIFT][id & CHUNK_MASK] = text;
+        chunks = current;
+        estimatedBytes += ENTRY_OVERHEAD_BYTES + text.length() * 2L;
+        size = id + 1;
+        ids.put(text, id);
+        return id;
+    }
+
+    public int find(String text) {
+        Integer id = ids.get(text);
+        return id == null ? NOT_INTERNED : id;
+    }
+
+    public String resolve(int id) {
+        return chunks[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        int entries = size;
+        out.writeInt(entries);
+        for (int id = 0; id < entries; id++) {
+            byte[] bytes = resolve(id).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    Remap readFrom(ByteBuffer in) {
+        int entries = in.getInt();
+        Remap remap = new Remap(entries);
+        byte[] bytes = new byte[64];
+        for (int snapshotId = 0; snapshotId < entries; snapshotId++) {
+            int length = in.getInt();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            in.get(bytes, 0, length);
+            String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            remap.texts[snapshotId] = text;
+            remap.ids[snapshotId] = intern(text);
+        }
+        return remap;
+    }
+
+    static final class Remap {
+        private final String[] texts;
+        private final int[] ids;
+
+        private Remap(int entries) {
+            this.texts = new String[entries];
+            this.ids = new int[entries];
+        }
+
+        int id(int snapshotId) {
+            return snapshotId == NOT_INTERNED ? NOT_INTERNED : ids[snapshotId];
+        }
+
+        String text(int snapshotId) {
+            return texts[snapshotId];
+        }
+    }
+}
+
+abstract class Transaction {
+    private int epochDay;
+    private long amountMinor;
+    private int descriptionId;
+    private String uninternedDescription;
+
+    public Transaction(Date date, double amount, String description) {
+        this(DateParser.toEpochDay(date), amount, description);
+    }
+
+    public Transaction(int epochDay, double amount, String description) {
+        this(Money.ofMajor(amount), epochDay, description);
+    }
+
+    protected Transaction() {
+    }
+
+    protected Transaction(long amountMinor, int epochDay, String description) {
+        this.epochDay = epochDay;
+        this.amountMinor = amountMinor;
+        this.descriptionId = DescriptionDictionary.SHARED.intern(description == null ? "" : description);
+        if (descriptionId == DescriptionDictionary.NOT_INTERNED) {
+            this.uninternedDescription = description;
+        }
+    }
+
+    public int getEpochDay() {
+        return epochDay;
+    }
+
+    public Date getDate() {
+        return DateParser.toDate(getEpochDay());
+    }
+
+    public LocalDate getLocalDate() {
+        return LocalDate.ofEpochDay(getEpochDay());
+    }
+
+    public double getAmount() {
+        return Money.toMajor(getAmountMinor());
+    }
+
+    public long getAmountMinor() {
+        return amountMinor;
+    }
+
+    public int getDescriptionId() {
+        return descriptionId;
+    }
+
+    public String getDescription() {
+        if (descriptionId == DescriptionDictionary.NOT_INTERNED) {
+            return uninternedDescription;
+        }
+        return DescriptionDictionary.SHARED.resolve(descriptionId);
+    }
+
+    public String getTransactionDetails() {
+        return appendTransactionDetails(new StringBuilder(96)).toString();
+    }
+
+    public StringBuilder appendTransactionDetails(StringBuilder out) {
+        out.append("Date: ").append(getDate()).append(", Amount: ");
+        return Money.appendTo(out, getAmountMinor()).append(", Description: ").append(getDescription());
+    }
+
+    public abstract int processTransaction(Account account);
+}
+
+class IncomeTransaction extends Transaction {
+    public IncomeTransaction(Date date, double amount, String description) {
+        super(date, amount, description);
+    }
+
+    public IncomeTransaction(int epochDay, double amount, String description) {
+        super(epochDay, amount, description);
+    }
+
+    private IncomeTransaction(long amountMinor, int epochDay, String description) {
+        super(amountMinor, epochDay, description);
+    }
+
+    public static IncomeTransaction ofMinor(int epochDay, long amountMinor, String description) {
+        return new IncomeTransaction(amountMinor, epochDay, description);
+    }
+
+    @Override
+    public int processTransaction(Account account) {
+        account.depositMinor(getAmountMinor());
+        return Account.OK;
+    }
+}
+
+class ExpenseTransaction extends Transaction {
+    public ExpenseTransaction(Date date, double amount, String description) {
+        super(date, amount, description);
+    }
+
+    public ExpenseTransaction(int epochDay, double amount, String description) {
+        super(epochDay, amount, description);
+    }
+
+    private ExpenseTransaction(long amountMinor, int epochDay, String description) {
+        super(amountMinor, epochDay, description);
+    }
+
+    public static ExpenseTransaction ofMinor(int epochDay, long amountMinor, String description) {
+        return new ExpenseTransaction(amountMinor, epochDay, description);
+    }
+
+    @Override
+    public int processTransaction(Account account) {
+        return account.withdrawMinor(getAmountMinor());
+    }
+}
+
+final class SegmentArena {
+    static final SegmentArena SHARED = create(System.getProperty("budget.store.dir"));
+    private static final int MAPPED_REGION_BYTES = 1 << 26;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FileChannel channel;
+    private ByteBuffer region = ByteBuffer.allocate(0);
+    private long mappedBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeSegments = new HashMap<>();
+
+    private SegmentArena(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct") || pool.getName().equals("mapped")) {
+                Metrics.gauge("offHeap." + pool.getName() + "Bytes", pool::getMemoryUsed);
+            }
+        }
+    }
+
+    static SegmentArena direct() {
+        return new SegmentArena(null);
+    }
+
+    static SegmentArena mapped(Path file) throws IOException {
+        return new SegmentArena(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE));
+    }
+
+    private static SegmentArena create(String directory) {
+        if (directory == null) {
+            return direct();
+        }
+        try {
+            Path file = Files.createTempFile(Paths.get(directory), "ledger", ".segments");
+            return mapped(file);
+        } catch (IOException | InvalidPathException e) {
+            System.err.println("Could not map transaction segments in " + directory + " (" + e.getMessage()
+                    + "), using direct memory instead.");
+            return direct();
+        }
+    }
+
+    public ByteBuffer allocate(int bytes) {
+        if (channel == null) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        return allocateMapped(bytes);
+    }
+
+    // Mapped file space is never unmapped, so segments of an unreachable owner go back to a free list instead
+    Segments segmentsFor(Object owner) {
+        Segments segments = new Segments(this);
+        if (channel != null) {
+            CLEANER.register(owner, segments);
+        }
+        return segments;
+    }
+
+    private synchronized ByteBuffer allocateMapped(int bytes) {
+        ArrayDeque<ByteBuffer> free = freeSegments.get(bytes);
+        if (free != null && !free.isEmpty()) {
+            // Owners write every slot before reading it, so a reused segment is not cleared
+            return free.pop();
+        }
+        if (region.remaining() < bytes) {
+            int regionBytes = Math.max(bytes, MAPPED_REGION_BYTES);
+            try {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, regionBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not extend the transaction segment file", e);
+            }
+            mappedBytes += regionBytes;
+        }
+        ByteBuffer segment = region.slice(region.position(), bytes).order(ByteOrder.nativeOrder());
+        region.position(region.position() + bytes);
+        return segment;
+    }
+
+    private synchronized void release(List<ByteBuffer> segments) {
+        for (ByteBuffer segment : segments) {
+            freeSegments.computeIfAbsent(segment.capacity(), size -> new ArrayDeque<>()).push(segment);
+        }
+    }
+
+    synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public boolean isMapped() {
+        return channel != null;
+    }
+
+    static final class Segments implements Runnable {
+        private final SegmentArena arena;
+        private final List<ByteBuffer> allocated = new ArrayList<>();
+
+        private Segments(SegmentArena arena) {
+            this.arena = arena;
+        }
+
+        synchronized ByteBuffer allocate(int bytes) {
+            ByteBuffer segment = arena.allocate(bytes);
+            if (arena.isMapped()) {
+                allocated.add(segment);
+            }
+            return segment;
+        }
+
+        @Override
+        public synchronized void run() {
+            arena.release(allocated);
+            allocated.clear();
+        }
+    }
+}
+
+class TransactionStore {
+    static final byte INCOME = 0;
+    static final byte EXPENSE = 1;
+    static final byte REMOVED = 4;
+    static final int NO_CATEGORY = -1;
+    static final int BYTES_PER_ROW = Integer.BYTES * 3 + Long.BYTES + Byte.BYTES;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final SegmentArena.Segments segments;
+    private IntBuffer[] epochDays = new IntBuffer[0];
+    private LongBuffer[] amounts = new LongBuffer[0];
+    private ByteBuffer[] types = new ByteBuffer[0];
+    private IntBuffer[] descriptionIds = new IntBuffer[0];
+    private IntBuffer[] categoryIds = new IntBuffer[0];
+    private final Map<Integer, String> uninternedDescriptions = new HashMap<>();
+    private int rowCount;
+    private int removedCount;
+
+    public TransactionStore() {
+        this(SegmentArena.SHARED);
+    }
+
+    public TransactionStore(SegmentArena arena) {
+        this.segments = arena.segmentsFor(this);
+    }
+
+    public int append(Transaction transaction) {
+        int row = append(typeOf(transaction), transaction.getEpochDay(), transaction.getAmountMinor(),
+                DescriptionDictionary.NOT_INTERNED, NO_CATEGORY);
+        setDescription(row, transaction.getDescriptionId(), transaction.getDescription());
+        return row;
+    }
+
+    public int append(byte type, int epochDay, long amountMinor, String description) {
+        return append(type, epochDay, amountMinor, description, NO_CATEGORY);
+    }
+
+    public int append(byte type, int epochDay, long amountMinor, String description, int categoryId) {
+        int row = append(type, epochDay, amountMinor, DescriptionDictionary.NOT_INTERNED, categoryId);
+        setDescription(row, description);
+        return row;
+    }
+
+    private int append(byte type, int epochDay, long amountMinor, int descriptionId, int categoryId) {
+        int row = rowCount;
+        int chunk = row >>> CHUNK_SHIFT;
+        if (chunk == epochDays.length) {
+            addChunk();
+        }
+        int offset = row & CHUNK_MASK;
+        epochDays[chunk].put(offset, epochDay);
+        amounts[chunk].put(offset, amountMinor);
+        types[chunk].put(offset, type);
+        descriptionIds[chunk].put(offset, descriptionId);
+        categoryIds[chunk].put(offset, categoryId);
+        rowCount++;
+        return row;
+    }
+
+    public int appendAll(TransactionBatch batch, int[] batchCategoryIds) {
+        int firstRow = rowCount;
+        int count = batch.size();
+        for (int copied = 0; copied < count; ) {
+            int chunk = rowCount >>> CHUNK_SHIFT;
+            if (chunk == epochDays.length) {
+                addChunk();
+            }
+            int offset = rowCount & CHUNK_MASK;
+            int length = Math.min(count - copied, CHUNK_SIZE - offset);
+            epochDays[chunk].put(offset, batch.epochDays(), copied, length);
+            amounts[chunk].put(offset, batch.amounts(), copied, length);
+            types[chunk].put(offset, batch.types(), copied, length);
+            categoryIds[chunk].put(offset, batchCategoryIds, copied, length);
+            copied += length;
+            rowCount += length;
+        }
+        for (int i = 0; i < count; i++) {
+            setDescription(firstRow + i, batch.getDescription(i));
+        }
+        return firstRow;
+    }
+
+    private void addChunk() {
+        int chunks = epochDays.length;
+        epochDays = Arrays.copyOf(epochDays, chunks + 1);
+        amounts = Arrays.copyOf(amounts, chunks + 1);
+        types = Arrays.copyOf(types, chunks + 1);
+        descriptionIds = Arrays.copyOf(descriptionIds, chunks + 1);
+        categoryIds = Arrays.copyOf(categoryIds, chunks + 1);
+        // One segment per chunk, laid out column by column so scans stay sequential
+        ByteBuffer segment = segments.allocate(CHUNK_SIZE * BYTES_PER_ROW);
+        int position = 0;
+        amounts[chunks] = column(segment, position, Long.BYTES).asLongBuffer();
+        position += CHUNK_SIZE * Long.BYTES;
+        epochDays[chunks] = column(segment, position, Integer.BYTES).asIntBuffer();
+        position += CHUNK_SIZE * Integer.BYTES;
+        descriptionIds[chunks] = column(segment, position, Integer.BYTES).asIntBuffer();
+        position += CHUNK_SIZE * Integer.BYTES;
+        categoryIds[chunks] = column(segment, position, Integer.BYTES).asIntBuffer();
+        position += CHUNK_SIZE * Integer.BYTES;
+        types[chunks] = column(segment, position, Byte.BYTES);
+    }
+
+    private static ByteBuffer column(ByteBuffer segment, int position, int width) {
+        return segment.slice(position, CHUNK_SIZE * width).order(ByteOrder.nativeOrder());
+    }
+
+    private void setDescription(int row, String description) {
+        String text = description == null ? "" : description;
+        setDescription(row, DescriptionDictionary.SHARED.intern(text), text);
+    }
+
+    private void setDescription(int row, int descriptionId, String description) {
+        descriptionIds[row >>> CHUNK_SHIFT].put(row & CHUNK_MASK, descriptionId);
+        if (descriptionId == DescriptionDictionary.NOT_INTERNED) {
+            uninternedDescriptions.put(row, description);
+        }
+    }
+
+    public boolean remove(int row) {
+        if (row < 0 || row >= rowCount || isRemoved(row)) {
+            return false;
+        }
+        types[row >>> CHUNK_SHIFT].put(row & CHUNK_MASK, (byte) (getType(row) | REMOVED));
+        removedCount++;
+        return true;
+    }
+
+    public int find(Transaction transaction) {
+        byte type = typeOf(transaction);
+        int epochDay = transaction.getEpochDay();
+        long amountMinor = transaction.getAmountMinor();
+        int descriptionId = transaction.getDescriptionId();
+        for (int row = rowCount - 1; row >= 0; row--) {
+            int chunk = row >>> CHUNK_SHIFT;
+            int offset = row & CHUNK_MASK;
+            if (types[chunk].get(offset) == type && amounts[chunk].get(offset) == amountMinor
+                    && epochDays[chunk].get(offset) == epochDay && descriptionIds[chunk].get(offset) == descriptionId
+                    && (descriptionId != DescriptionDictionary.NOT_INTERNED
+                    || uninternedDescriptions.get(row).equals(transaction.getDescription()))) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return rowCount - removedCount;
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public boolean isRemoved(int row) {
+        return (getType(row) & REMOVED) != 0;
+    }
+
+    public byte getType(int row) {
+        return types[row >>> CHUNK_SHIFT].get(row & CHUNK_MASK);
+    }
+
+    public int getEpochDay(int row) {
+        return epochDays[row >>> CHUNK_SHIFT].get(row & CHUNK_MASK);
+    }
+
+    public long getAmountMinor(int row) {
+        return amounts[row >>> CHUNK_SHIFT].get(row & CHUNK_MASK);
+    }
+
+    public int getDescriptionId(int row) {
+        return descriptionIds[row >>> CHUNK_SHIFT].get(row & CHUNK_MASK);
+    }
+
+    public String getDescription(int row) {
+        int descriptionId = getDescriptionId(row);
+        if (descriptionId == DescriptionDictionary.NOT_INTERNED) {
+            return uninternedDescriptions.get(row);
+        }
+        return DescriptionDictionary.SHARED.resolve(descriptionId);
+    }
+
+    public int getCategoryId(int row) {
+        return categoryIds[row >>> CHUNK_SHIFT].get(row & CHUNK_MASK);
+    }
+
+    public long minAmount(int categoryId) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            if (getCategoryId(row) == categoryId && !isRemoved(row)) {
+                min = Math.min(min, getAmountMinor(row));
+            }
+        }
+        return min;
+    }
+
+    public long maxAmount(int categoryId) {
+        long max = Long.MIN_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            if (getCategoryId(row) == categoryId && !isRemoved(row)) {
+                max = Math.max(max, getAmountMinor(row));
+            }
+        }
+        return max;
+    }
+
+    public long sum(byte type) {
+        long total = 0;
+        int remaining = rowCount;
+        for (int chunk = 0; remaining > 0; chunk++) {
+            ByteBuffer chunkTypes = types[chunk];
+            LongBuffer chunkAmounts = amounts[chunk];
+            int length = Math.min(remaining, CHUNK_SIZE);
+            for (int i = 0; i < length; i++) {
+                if (chunkTypes.get(i) == type) {
+                    total += chunkAmounts.get(i);
+                }
+            }
+            remaining -= length;
+        }
+        return total;
+    }
+
+    void aggregate(int fromRow, int toRow, int firstDay, int[] monthOfDay, long[] income, long[] expenses,
+                   long[] expensesByCategory) {
+        for (int row = fromRow; row < toRow; ) {
+            int chunk = row >>> CHUNK_SHIFT;
+            int offset = row & CHUNK_MASK;
+            int end = Math.min(CHUNK_SIZE, offset + (toRow - row));
+            ByteBuffer chunkTypes = types[chunk];
+            IntBuffer chunkDays = epochDays[chunk];
+            LongBuffer chunkAmounts = amounts[chunk];
+            IntBuffer chunkCategories = categoryIds[chunk];
+            for (int i = offset; i < end; i++) {
+                byte type = chunkTypes.get(i);
+                if (type == INCOME) {
+                    income[monthOfDay[chunkDays.get(i) - firstDay]] += chunkAmounts.get(i);
+                } else if (type == EXPENSE) {
+                    long amountMinor = chunkAmounts.get(i);
+                    expenses[monthOfDay[chunkDays.get(i) - firstDay]] += amountMinor;
+                    int categoryId = chunkCategories.get(i);
+                    if (categoryId != NO_CATEGORY) {
+                        expensesByCategory[categoryId] += amountMinor;
+                    }
+                }
+            }
+            row += end - offset;
+        }
+    }
+
+    public Transaction get(int row) {
+        int epochDay = getEpochDay(row);
+        long amountMinor = getAmountMinor(row);
+        String description = getDescription(row);
+        if ((getType(row) & ~REMOVED) == INCOME) {
+            return IncomeTransaction.ofMinor(epochDay, amountMinor, description);
+        }
+        return ExpenseTransaction.ofMinor(epochDay, amountMinor, description);
+    }
+
+    public List<Transaction> asList() {
+        return new AbstractList<Transaction>() {
+            @Override
+            public Transaction get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                }
+                if (removedCount == 0) {
+                    return TransactionStore.this.get(index);
+                }
+                for (int row = 0; row < rowCount; row++) {
+                    if (!isRemoved(row) && index-- == 0) {
+                        return TransactionStore.this.get(row);
+                    }
+                }
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+
+            @Override
+            public int size() {
+                return TransactionStore.this.size();
+            }
+
+            @Override
+            public Iterator<Transaction> iterator() {
+                return new Iterator<Transaction>() {
+                    private int row = nextLiveRow(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return row < rowCount;
+                    }
+
+                    @Override
+                    public Transaction next() {
+                        if (row >= rowCount) {
+                            throw new NoSuchElementException();
+                        }
+                        Transaction transaction = TransactionStore.this.get(row);
+                        row = nextLiveRow(row + 1);
+                        return transaction;
+                    }
+                };
+            }
+        };
+    }
+
+    private int nextLiveRow(int row) {
+        while (row < rowCount && isRemoved(row)) {
+            row++;
+        }
+        return row;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(rowCount);
+        out.writeInt(removedCount);
+        ByteBuffer scratch = ByteBuffer.allocate(CHUNK_SIZE * Long.BYTES);
+        for (int chunk = 0, remaining = rowCount; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            scratch.asIntBuffer().put(0, epochDays[chunk], 0, length);
+            out.write(scratch.array(), 0, length * Integer.BYTES);
+        }
+        for (int chunk = 0, remaining = rowCount; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            scratch.asLongBuffer().put(0, amounts[chunk], 0, length);
+            out.write(scratch.array(), 0, length * Long.BYTES);
+        }
+        for (int chunk = 0, remaining = rowCount; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            types[chunk].get(0, scratch.array(), 0, length);
+            out.write(scratch.array(), 0, length);
+        }
+        for (int chunk = 0, remaining = rowCount; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            scratch.asIntBuffer().put(0, descriptionIds[chunk], 0, length);
+            out.write(scratch.array(), 0, length * Integer.BYTES);
+        }
+        for (int chunk = 0, remaining = rowCount; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            scratch.asIntBuffer().put(0, categoryIds[chunk], 0, length);
+            out.write(scratch.array(), 0, length * Integer.BYTES);
+        }
+        out.writeInt(uninternedDescriptions.size());
+        for (Map.Entry<Integer, String> entry : uninternedDescriptions.entrySet()) {
+            byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(entry.getKey());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static TransactionStore readFrom(ByteBuffer in, DescriptionDictionary.Remap descriptions) {
+        TransactionStore store = new TransactionStore();
+        int rows = in.getInt();
+        store.removedCount = in.getInt();
+        while (store.epochDays.length * CHUNK_SIZE < rows) {
+            store.addChunk();
+        }
+        store.rowCount = rows;
+        for (int chunk = 0, remaining = rows; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            store.epochDays[chunk].put(0, in.asIntBuffer(), 0, length);
+            in.position(in.position() + length * Integer.BYTES);
+        }
+        for (int chunk = 0, remaining = rows; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            store.amounts[chunk].put(0, in.asLongBuffer(), 0, length);
+            in.position(in.position() + length * Long.BYTES);
+        }
+        for (int chunk = 0, remaining = rows; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            store.types[chunk].put(0, in, in.position(), length);
+            in.position(in.position() + length);
+        }
+        for (int chunk = 0, remaining = rows; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            IntBuffer chunkDescriptionIds = store.descriptionIds[chunk];
+            for (int i = 0; i < length; i++) {
+                int snapshotId = in.getInt();
+                chunkDescriptionIds.put(i, descriptions.id(snapshotId));
+                if (chunkDescriptionIds.get(i) == DescriptionDictionary.NOT_INTERNED
+                        && snapshotId != DescriptionDictionary.NOT_INTERNED) {
+                    store.uninternedDescriptions.put((chunk << CHUNK_SHIFT) + i, descriptions.text(snapshotId));
+                }
+            }
+        }
+        for (int chunk = 0, remaining = rows; remaining > 0; chunk++, remaining -= CHUNK_SIZE) {
+            int length = Math.min(remaining, CHUNK_SIZE);
+            store.categoryIds[chunk].put(0, in.asIntBuffer(), 0, length);
+            in.position(in.position() + length * Integer.BYTES);
+        }
+        int uninternedCount = in.getInt();
+        for (int i = 0; i < uninternedCount; i++) {
+            int row = in.getInt();
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            store.uninternedDescriptions.put(row, new String(bytes, StandardCharsets.UTF_8));
+        }
+        return store;
+    }
+
+    public View view(int row) {
+        return new View().moveTo(row);
+    }
+
+    public void scan(Consumer<? super View> action) {
+        View view = new View();
+        for (int row = nextLiveRow(0); row < rowCount; row = nextLiveRow(row + 1)) {
+            action.accept(view.moveTo(row));
+        }
+    }
+
+    static byte typeOf(Transaction transaction) {
+        if (transaction instanceof View) {
+            return (byte) (((View) transaction).getType() & ~REMOVED);
+        }
+        if (transaction instanceof IncomeTransaction) {
+            return INCOME;
+        }
+        return EXPENSE;
+    }
+
+    // Reads a row in place; moveTo repositions the same instance, so copy it with detach() to keep it
+    final class View extends Transaction {
+        private int row;
+
+        View moveTo(int row) {
+            if (row < 0 || row >= rowCount) {
+                throw new IndexOutOfBoundsException("Row: " + row + ", Rows: " + rowCount);
+            }
+            this.row = row;
+            return this;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        boolean belongsTo(TransactionStore store) {
+            return store == TransactionStore.this;
+        }
+
+        public byte getType() {
+            return TransactionStore.this.getType(row);
+        }
+
+        @Override
+        public int getEpochDay() {
+            return TransactionStore.this.getEpochDay(row);
+        }
+
+        @Override
+        public long getAmountMinor() {
+            return TransactionStore.this.getAmountMinor(row);
+        }
+
+        @Override
+        public int getDescriptionId() {
+            return TransactionStore.this.getDescriptionId(row);
+        }
+
+        @Override
+        public String getDescription() {
+            return TransactionStore.this.getDescription(row);
+        }
+
+        public Transaction detach() {
+            return get(row);
+        }
+
+        @Override
+        public int processTransaction(Account account) {
+            return detach().processTransaction(account);
+        }
+    }
+}
+
+class TransactionBatch {
+    private final byte[] types;
+    private final int[] epochDays;
+    private final long[] amounts;
+    private final String[] descriptions;
+    private final String[] categories;
+    private int size;
+
+    public TransactionBatch(int capacity) {
+        this.types = new byte[capacity];
+        this.epochDays = new int[capacity];
+        this.amounts = new long[capacity];
+        this.descriptions = new String[capacity];
+        this.categories = new String[capacity];
+    }
+
+    public void addIncome(int epochDay, long amountMinor, String description) {
+        add(TransactionStore.INCOME, epochDay, amountMinor, description, null);
+    }
+
+    public void addExpense(int epochDay, long amountMinor, String description) {
+        add(TransactionStore.EXPENSE, epochDay, amountMinor, description, null);
+    }
+
+    public void addExpense(int epochDay, long amountMinor, String description, String category) {
+        add(TransactionStore.EXPENSE, epochDay, amountMinor, description, category);
+    }
+
+    public void add(byte type, int epochDay, long amountMinor, String description, String category) {
+        if (size == types.length) {
+            throw new IllegalStateException("Batch is full (" + size + " records).");
+        }
+        if (type != TransactionStore.INCOME && type != TransactionStore.EXPENSE) {
+            throw new IllegalArgumentException("Unknown transaction type " + type + ".");
+        }
+        types[size] = type;
+        epochDays[size] = epochDay;
+        amounts[size] = amountMinor;
+        descriptions[size] = description;
+        categories[size] = category;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == types.length;
+    }
+
+    public void clear() {
+        Arrays.fill(descriptions, 0, size, null);
+        Arrays.fill(categories, 0, size, null);
+        size = 0;
+    }
+
+    public byte getType(int index) {
+        return types[index];
+    }
+
+    public int getEpochDay(int index) {
+        return epochDays[index];
+    }
+
+    public long getAmountMinor(int index) {
+        return amounts[index];
+    }
+
+    public String getDescription(int index) {
+        return descriptions[index];
+    }
+
+    public String getCategory(int index) {
+        return categories[index];
+    }
+
+    byte[] types() {
+        return types;
+    }
+
+    int[] epochDays() {
+        return epochDays;
+    }
+
+    long[] amounts() {
+        return amounts;
+    }
+}
+
+class DateIndex {
+    private static final int NO_ROW = -1;
+    private static final int LINK_SHIFT = 12;
+    private static final int LINK_MASK = (1 << LINK_SHIFT) - 1;
+
+    private final int firstDay;
+    private final int dayCount;
+    private final long[] incomeTree;
+    private final long[] expenseTree;
+    private final int[] monthOfDay;
+    private final int[] monthKeys;
+    private final long[] monthIncome;
+    private final long[] monthExpenses;
+    private final int[] dayHead;
+    private final int[] dayTail;
+    private IntBuffer[] nextRow = new IntBuffer[0];
+    private final SegmentArena.Segments segments = SegmentArena.SHARED.segmentsFor(this);
+
+    public DateIndex(int firstDay, int lastDay) {
+        if (lastDay < firstDay) {
+            throw new IllegalArgumentException("End date must not be before start date.");
+        }
+        this.firstDay = firstDay;
+        this.dayCount = lastDay - firstDay + 1;
+        this.incomeTree = new long[dayCount + 1];
+        this.expenseTree = new long[dayCount + 1];
+        this.monthOfDay = new int[dayCount];
+        this.dayHead = new int[dayCount];
+        this.dayTail = new int[dayCount];
+        Arrays.fill(dayHead, NO_ROW);
+        Arrays.fill(dayTail, NO_ROW);
+
+        LocalDate first = LocalDate.ofEpochDay(firstDay);
+        int firstMonthKey = monthKey(first.getYear(), first.getMonthValue());
+        LocalDate last = LocalDate.ofEpochDay(lastDay);
+        int monthCount = monthKey(last.getYear(), last.getMonthValue()) - firstMonthKey + 1;
+        this.monthKeys = new int[monthCount];
+        this.monthIncome = new long[monthCount];
+        this.monthExpenses = new long[monthCount];
+        for (int month = 0; month < monthCount; month++) {
+            monthKeys[month] = firstMonthKey + month;
+        }
+        LocalDate date = first;
+        for (int day = 0; day < dayCount; day++, date = date.plusDays(1)) {
+            monthOfDay[day] = monthKey(date.getYear(), date.getMonthValue()) - firstMonthKey;
+        }
+    }
+
+    private static int monthKey(int year, int month) {
+        return year * 12 + month - 1;
+    }
+
+    public int getFirstDay() {
+        return firstDay;
+    }
+
+    public int getLastDay() {
+        return firstDay + dayCount - 1;
+    }
+
+    public boolean covers(int epochDay) {
+        return epochDay >= firstDay && epochDay - firstDay < dayCount;
+    }
+
+    public void add(int row, int epochDay, byte type, long amountMinor) {
+        int day = epochDay - firstDay;
+        while (row >>> LINK_SHIFT >= nextRow.length) {
+            nextRow = Arrays.copyOf(nextRow, nextRow.length + 1);
+            nextRow[nextRow.length - 1] = segments.allocate(Integer.BYTES << LINK_SHIFT).asIntBuffer();
+        }
+        setNextRow(row, NO_ROW);
+        if (dayHead[day] == NO_ROW) {
+            dayHead[day] = row;
+        } else {
+            setNextRow(dayTail[day], row);
+        }
+        dayTail[day] = row;
+        update(day, type, amountMinor);
+    }
+
+    public void remove(int epochDay, byte type, long amountMinor) {
+        update(epochDay - firstDay, type, -amountMinor);
+    }
+
+    private void update(int day, byte type, long amountMinor) {
+        long[] tree = type == TransactionStore.INCOME ? incomeTree : expenseTree;
+        for (int i = day + 1; i <= dayCount; i += i & -i) {
+            tree[i] += amountMinor;
+        }
+        long[] months = type == TransactionStore.INCOME ? monthIncome : monthExpenses;
+        months[monthOfDay[day]] += amountMinor;
+    }
+
+    public long sum(byte type, int fromEpochDay, int toEpochDay) {
+        int from = Math.max(fromEpochDay - firstDay, 0);
+        int to = Math.min(toEpochDay - firstDay, dayCount - 1);
+        if (from > to) {
+            return 0;
+        }
+        long[] tree = type == TransactionStore.INCOME ? incomeTree : expenseTree;
+        return prefixSum(tree, to + 1) - prefixSum(tree, from);
+    }
+
+    private static long prefixSum(long[] tree, int days) {
+        long total = 0;
+        for (int i = days; i > 0; i -= i & -i) {
+            total += tree[i];
+        }
+        return total;
+    }
+
+    public long monthTotal(byte type, int year, int month) {
+        int index = monthKey(year, month) - monthKeys[0];
+        if (index < 0 || index >= monthKeys.length) {
+            return 0;
+        }
+        return type == TransactionStore.INCOME ? monthIncome[index] : monthExpenses[index];
+    }
+
+    public int firstRow(int epochDay) {
+        return covers(epochDay) ? dayHead[epochDay - firstDay] : NO_ROW;
+    }
+
+    public int nextRow(int row) {
+        return nextRow[row >>> LINK_SHIFT].get(row & LINK_MASK);
+    }
+
+    private void setNextRow(int row, int next) {
+        nextRow[row >>> LINK_SHIFT].put(row & LINK_MASK, next);
+    }
+}
+
+class Category {
+    private String name;
+    private TransactionStore rows;
+    private int id = TransactionStore.NO_CATEGORY;
+    private long count;
+    private long total;
+    private long min;
+    private long max;
+    private boolean extremesStale;
+
+    public Category(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Rollups are keyed by the budget's row ids, so a category keeps no copy of its expenses
+    void attach(TransactionStore rows, int id) {
+        this.rows = rows;
+        this.id = id;
+    }
+
+    public void addExpense(int row) {
+        long amountMinor = rows.getAmountMinor(row);
+        if (count == 0) {
+            min = amountMinor;
+            max = amountMinor;
+            extremesStale = false;
+        } else if (!extremesStale) {
+            min = Math.min(min, amountMinor);
+            max = Math.max(max, amountMinor);
+        }
+        count++;
+        total += amountMinor;
+    }
+
+    public void removeExpense(int row) {
+        long amountMinor = rows.getAmountMinor(row);
+        count--;
+        total -= amountMinor;
+        if (amountMinor == min || amountMinor == max) {
+            // Recomputed on the next read instead of on every removal
+            extremesStale = true;
+        }
+    }
+
+    public List<Transaction> getExpenses() {
+        List<Transaction> expenses = new ArrayList<>();
+        for (int row = 0; row < rows.rowCount(); row++) {
+            if (rows.getCategoryId(row) == id && !rows.isRemoved(row)) {
+                expenses.add(rows.get(row));
+            }
+        }
+        return expenses;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalMinor() {
+        return total;
+    }
+
+    public double getTotal() {
+        return Money.toMajor(total);
+    }
+
+    public long getMinMinor() {
+        refreshExtremes();
+        return min;
+    }
+
+    public long getMaxMinor() {
+        refreshExtremes();
+        return max;
+    }
+
+    private void refreshExtremes() {
+        if (extremesStale) {
+            min = count == 0 ? 0 : rows.minAmount(id);
+            max = count == 0 ? 0 : rows.maxAmount(id);
+            extremesStale = false;
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static Category readFrom(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new Category(new String(bytes, StandardCharsets.UTF_8));
+    }
+}
+
+class Budget {
+    static final int POSTED = 0;
+    static final int OUTSIDE_PERIOD = 1;
+    static final int INSUFFICIENT_FUNDS = 2;
+    static final int BATCH_APPLIED = -1;
+    static final int BATCH_INSUFFICIENT_FUNDS = -2;
+    // The date index keeps a few words per day of the period, so the period length is what bounds its size
+    static final int MAX_PERIOD_DAYS = 36_525;
+    private static final int ALL_CATEGORIES = -2;
+    private static final int CACHED_TRANSACTION_BYTES = 48;
+    private static final int CACHED_MAP_ENTRY_BYTES = 72;
+
+    interface AlertListener {
+        void alertFired(BudgetAlert alert);
+    }
+
+    private int startDay;
+    private int endDay;
+    private long baseIncome;
+    private long transactionIncome;
+    private long totalExpenses;
+    private TransactionStore transactions;
+    private DateIndex dateIndex;
+    private Map<String, Category> categories;
+    private Map<String, Integer> categoryIds;
+    private List<Category> categoriesById;
+    private int[] batchCategoryIds = new int[0];
+    private List<Threshold> thresholds;
+    private final List<AlertListener> alertListeners = new CopyOnWriteArrayList<>();
+    private final List<AlertListener> synchronousAlertListeners = new CopyOnWriteArrayList<>();
+    private final QueryCache queryCache = new QueryCache();
+    private DuplicateIndex duplicates = new DuplicateIndex();
+
+    public Budget(Date startDate, Date endDate, double income) {
+        this(DateParser.toEpochDay(startDate), DateParser.toEpochDay(endDate), income);
+    }
+
+    public Budget(int startDay, int endDay, double income) {
+        this(Money.ofMajor(income), startDay, endDay);
+    }
+
+    private Budget(long incomeMinor, int startDay, int endDay) {
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.baseIncome = incomeMinor;
+        this.transactions = new TransactionStore();
+        this.dateIndex = new DateIndex(startDay, endDay);
+        this.categories = new LinkedHashMap<>();
+        this.categoryIds = new HashMap<>();
+        this.categoriesById = new ArrayList<>();
+    }
+
+    public static Budget ofMinor(int startDay, int endDay, long incomeMinor) {
+        return new Budget(incomeMinor, startDay, endDay);
+    }
+
+    public Date getStartDate() {
+        return DateParser.toDate(startDay);
+    }
+
+    public Date getEndDate() {
+        return DateParser.toDate(endDay);
+    }
+
+    public int getStartDay() {
+        return startDay;
+    }
+
+    public int getEndDay() {
+        return endDay;
+    }
+
+    public double getIncome() {
+        return Money.toMajor(baseIncome + transactionIncome);
+    }
+
+    public void setIncome(double income) {
+        this.baseIncome = Money.ofMajor(income) - transactionIncome;
+    }
+
+    public double getTotalExpenses() {
+        return Money.toMajor(totalExpenses);
+    }
+
+    public long getIncomeMinor() {
+        return baseIncome + transactionIncome;
+    }
+
+    public long getTotalExpensesMinor() {
+        return totalExpenses;
+    }
+
+    public double getBalance() {
+        return Money.toMajor(baseIncome + transactionIncome - totalExpenses);
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions.asList();
+    }
+
+    public Category getCategory(String name) {
+        return categories.get(name);
+    }
+
+    public Collection<Category> getCategories() {
+        return Collections.unmodifiableCollection(categories.values());
+    }
+
+    int getCategoryCount() {
+        return categoriesById.size();
+    }
+
+    Category getCategory(int categoryId) {
+        return categoriesById.get(categoryId);
+    }
+
+    TransactionStore getTransactionStore() {
+        return transactions;
+    }
+
+    private int categoryId(String name) {
+        if (name == null || name.isEmpty()) {
+            return TransactionStore.NO_CATEGORY;
+        }
+        Integer id = categoryIds.get(name);
+        if (id == null) {
+            id = categoriesById.size();
+            registerCategory(new Category(name));
+        }
+        return id;
+    }
+
+    private void registerCategory(Category category) {
+        category.attach(transactions, categoriesById.size());
+        categories.put(category.getName(), category);
+        categoryIds.put(category.getName(), categoriesById.size());
+        categoriesById.add(category);
+        // Reports list every category, even ones that have no spend yet
+        queryCache.invalidateKind(QueryCache.REPORT);
+    }
+
+    public boolean covers(int epochDay) {
+        return dateIndex.covers(epochDay);
+    }
+
+    public boolean covers(Date date) {
+        return covers(DateParser.toEpochDay(date));
+    }
+
+    public boolean addTransaction(Transaction transaction, Account account) {
+        return addTransaction(transaction, account, null);
+    }
+
+    public boolean addTransaction(Transaction transaction, Account account, String categoryName) {
+        return postTransaction(transaction, account, categoryName) == POSTED;
+    }
+
+    public int postTransaction(Transaction transaction, Account account, String categoryName) {
+        int epochDay = transaction.getEpochDay();
+        if (!covers(epochDay)) {
+            return OUTSIDE_PERIOD;
+        }
+        if (account.processTransaction(transaction) != Account.OK) {
+            return INSUFFICIENT_FUNDS;
+        }
+        addPostedRow(TransactionStore.typeOf(transaction), epochDay, transaction.getAmountMinor(),
+                transaction.getDescription(), account, categoryName);
+        return POSTED;
+    }
+
+    public int postRecord(byte type, int epochDay, long amountMinor, String description, Account account,
+                          String categoryName) {
+        if (!covers(epochDay)) {
+            return OUTSIDE_PERIOD;
+        }
+        if (type == TransactionStore.INCOME) {
+            account.depositMinor(amountMinor);
+        } else if (account.withdrawMinor(amountMinor) != Account.OK) {
+            return INSUFFICIENT_FUNDS;
+        }
+        addPostedRow(type, epochDay, amountMinor, description, account, categoryName);
+        return POSTED;
+    }
+
+    public boolean addRecord(byte type, int epochDay, long amountMinor, String description, Account account) {
+        return addRecord(type, epochDay, amountMinor, description, account, null);
+    }
+
+    public boolean addRecord(byte type, int epochDay, long amountMinor, String description, Account account,
+                             String categoryName) {
+        if (!covers(epochDay)) {
+            return false;
+        }
+        if (type == TransactionStore.INCOME) {
+            account.depositMinor(amountMinor);
+        } else {
+            account.postWithdrawalMinor(amountMinor);
+        }
+        addPostedRow(type, epochDay, amountMinor, description, account, categoryName);
+        return true;
+    }
+
+    private void addPostedRow(byte type, int epochDay, long amountMinor, String description, Account account,
+                              String categoryName) {
+        addRow(type, epochDay, amountMinor, description, categoryName);
+        if (CsvImporter.DEDUPLICATE) {
+            duplicates.add(account.getAccountNumber(), type, epochDay, amountMinor, description);
+        }
+    }
+
+    private void addRow(byte type, int epochDay, long amountMinor, String description, String categoryName) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        int categoryId = type == TransactionStore.EXPENSE ? categoryId(categoryName) : TransactionStore.NO_CATEGORY;
+        int row = transactions.append(type, epochDay, amountMinor, description, categoryId);
+        dateIndex.add(row, epochDay, type, amountMinor);
+        queryCache.invalidate(epochDay);
+        if (categoryId != TransactionStore.NO_CATEGORY) {
+            categoriesById.get(categoryId).addExpense(row);
+        }
+        applyToTotals(type, amountMinor);
+        if (type == TransactionStore.EXPENSE) {
+            checkThresholds(categoryId);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.LIVE_TRANSACTIONS.increment();
+            Metrics.BUDGET_ADD.recordSince(start);
+        }
+    }
+
+    public int addBatch(TransactionBatch batch, Account account) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        int count = batch.size();
+        long income = 0;
+        long expenses = 0;
+        // The balance has to clear the floor after every row in order, not only at the end of the batch
+        long drawdown = 0;
+        for (int i = 0; i < count; i++) {
+            byte type = batch.getType(i);
+            if (!covers(batch.getEpochDay(i)) || batch.getAmountMinor(i) < 0
+                    || (type != TransactionStore.INCOME && type != TransactionStore.EXPENSE)) {
+                return i;
+            }
+            if (type == TransactionStore.INCOME) {
+                income = Money.add(income, batch.getAmountMinor(i));
+            } else {
+                expenses = Money.add(expenses, batch.getAmountMinor(i));
+            }
+            drawdown = Math.max(drawdown, expenses - income);
+        }
+        if (drawdown > 0 && account.withdrawMinor(drawdown) != Account.OK) {
+            return BATCH_INSUFFICIENT_FUNDS;
+        }
+
+        // Only a batch that will land may register new categories
+        if (batchCategoryIds.length < count) {
+            batchCategoryIds = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            batchCategoryIds[i] = batch.getType(i) == TransactionStore.EXPENSE
+                    ? categoryId(batch.getCategory(i)) : TransactionStore.NO_CATEGORY;
+        }
+
+        int firstRow = transactions.appendAll(batch, batchCategoryIds);
+        queryCache.invalidate(batch.epochDays(), count);
+        if (CsvImporter.DEDUPLICATE) {
+            duplicates.addAll(account.getAccountNumber(), batch);
+        }
+        for (int i = 0; i < count; i++) {
+            dateIndex.add(firstRow + i, batch.getEpochDay(i), batch.getType(i), batch.getAmountMinor(i));
+            if (batchCategoryIds[i] != TransactionStore.NO_CATEGORY) {
+                categoriesById.get(batchCategoryIds[i]).addExpense(firstRow + i);
+            }
+        }
+        transactionIncome = Money.add(transactionIncome, income);
+        totalExpenses = Money.add(totalExpenses, expenses);
+        if (drawdown - expenses + income > 0) {
+            account.depositMinor(drawdown - expenses + income);
+        }
+        if (expenses > 0) {
+            checkThresholds(ALL_CATEGORIES);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.LIVE_TRANSACTIONS.add(count);
+            Metrics.BUDGET_ADD_BATCH.recordSince(start);
+        }
+        return BATCH_APPLIED;
+    }
+
+    public void removeTransaction(Transaction transaction) {
+        if (transaction instanceof TransactionStore.View
+                && ((TransactionStore.View) transaction).belongsTo(transactions)) {
+            removeTransaction(((TransactionStore.View) transaction).getRow());
+        } else {
+            removeTransaction(transactions.find(transaction));
+        }
+    }
+
+    public boolean removeTransaction(int row) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        boolean removed = transactions.remove(row);
+        if (removed) {
+            byte type = (byte) (transactions.getType(row) & ~TransactionStore.REMOVED);
+            dateIndex.remove(transactions.getEpochDay(row), type, transactions.getAmountMinor(row));
+            queryCache.invalidate(transactions.getEpochDay(row));
+            applyToTotals(type, -transactions.getAmountMinor(row));
+            int categoryId = transactions.getCategoryId(row);
+            if (categoryId != TransactionStore.NO_CATEGORY) {
+                categoriesById.get(categoryId).removeExpense(row);
+            }
+            if (Metrics.ENABLED) {
+                Metrics.LIVE_TRANSACTIONS.decrement();
+            }
+        }
+        if (Metrics.ENABLED) {
+            Metrics.BUDGET_REMOVE.recordSince(start);
+        }
+        return removed;
+    }
+
+    private void applyToTotals(int type, long amountMinor) {
+        if (type == TransactionStore.INCOME) {
+            transactionIncome = Money.add(transactionIncome, amountMinor);
+        } else if (type == TransactionStore.EXPENSE) {
+            totalExpenses = Money.add(totalExpenses, amountMinor);
+        }
+    }
+
+    public void addAlertListener(AlertListener listener) {
+        alertListeners.add(listener);
+    }
+
+    public void removeAlertListener(AlertListener listener) {
+        alertListeners.remove(listener);
+    }
+
+    // Called on the thread that posted the transaction, before the posting call returns; keep it cheap
+    public void addSynchronousAlertListener(AlertListener listener) {
+        synchronousAlertListeners.add(listener);
+    }
+
+    public void removeSynchronousAlertListener(AlertListener listener) {
+        synchronousAlertListeners.remove(listener);
+    }
+
+    public void addThreshold(String categoryName, double percentOfIncome) {
+        addThreshold(new Threshold(emptyToNull(categoryName), percentOfIncome, 0));
+    }
+
+    public void addAbsoluteThreshold(String categoryName, long limitMinor) {
+        addThreshold(new Threshold(emptyToNull(categoryName), 0, limitMinor));
+    }
+
+    private void addThreshold(Threshold threshold) {
+        if (thresholds == null) {
+            thresholds = new ArrayList<>();
+        }
+        // A restored budget already carries the built-in warning, so an identical alert is not added twice
+        for (Threshold existing : thresholds) {
+            if (existing.sameLimit(threshold)) {
+                return;
+            }
+        }
+        threshold.fired = spentFor(threshold) > threshold.limitMinor(baseIncome + transactionIncome);
+        thresholds.add(threshold);
+    }
+
+    void inheritAlertsFrom(Budget previous) {
+        alertListeners.addAll(previous.alertListeners);
+        synchronousAlertListeners.addAll(previous.synchronousAlertListeners);
+        if (previous.thresholds != null) {
+            for (Threshold threshold : previous.thresholds) {
+                addThreshold(new Threshold(threshold.categoryName, threshold.percentOfIncome,
+                        threshold.absoluteLimitMinor));
+            }
+        }
+    }
+
+    private static String emptyToNull(String categoryName) {
+        return categoryName == null || categoryName.isEmpty() ? null : categoryName;
+    }
+
+    private long spentFor(Threshold threshold) {
+        if (threshold.categoryName == null) {
+            return totalExpenses;
+        }
+        Category category = categories.get(threshold.categoryName);
+        return category == null ? 0 : category.getTotalMinor();
+    }
+
+    private void checkThresholds(int categoryId) {
+        if (thresholds == null) {
+            return;
+        }
+        String categoryName = categoryId >= 0 ? categoriesById.get(categoryId).getName() : null;
+        long income = baseIncome + transactionIncome;
+        for (Threshold threshold : thresholds) {
+            if (threshold.fired || (threshold.categoryName != null && categoryId != ALL_CATEGORIES
+                    && !threshold.categoryName.equals(categoryName))) {
+                continue;
+            }
+            long spent = spentFor(threshold);
+            long limit = threshold.limitMinor(income);
+            if (spent > limit) {
+                threshold.fired = true;
+                BudgetAlert alert = new BudgetAlert(threshold.categoryName, threshold.percentOfIncome, spent, limit);
+                for (AlertListener listener : synchronousAlertListeners) {
+                    listener.alertFired(alert);
+                }
+                AlertDispatcher.dispatch(alert, alertListeners);
+            }
+        }
+    }
+
+    private static final class Threshold {
+        private final String categoryName;
+        private final double percentOfIncome;
+        private final long absoluteLimitMinor;
+        private boolean fired;
+
+        private Threshold(String categoryName, double percentOfIncome, long absoluteLimitMinor) {
+            this.categoryName = categoryName;
+            this.percentOfIncome = percentOfIncome;
+            this.absoluteLimitMinor = absoluteLimitMinor;
+        }
+
+        private boolean sameLimit(Threshold other) {
+            return Objects.equals(categoryName, other.categoryName) && percentOfIncome == other.percentOfIncome
+                    && absoluteLimitMinor == other.absoluteLimitMinor;
+        }
+
+        private long limitMinor(long incomeMinor) {
+            if (percentOfIncome > 0) {
+                return Math.round(incomeMinor * (percentOfIncome / 100));
+            }
+            return absoluteLimitMinor;
+        }
+    }
+
+    public String getBudgetSummary() {
+        long income = getIncomeMinor();
+        StringBuilder summary = new StringBuilder(80).append("Income: ");
+        Money.appendTo(summary, income).append(", Total Expenses: ");
+        Money.appendTo(summary, totalExpenses).append(", Balance: ");
+        return Money.appendTo(summary, income - totalExpenses).toString();
+    }
+
+    public boolean isBudgetExceeded() {
+        return totalExpenses > baseIncome + transactionIncome;
+    }
+
+    public long getIncomeBetweenMinor(int fromEpochDay, int toEpochDay) {
+        return dateIndex.sum(TransactionStore.INCOME, fromEpochDay, toEpochDay);
+    }
+
+    public long getExpensesBetweenMinor(int fromEpochDay, int toEpochDay) {
+        return dateIndex.sum(TransactionStore.EXPENSE, fromEpochDay, toEpochDay);
+    }
+
+    public double getIncomeBetween(Date from, Date to) {
+        return Money.toMajor(
+                getIncomeBetweenMinor(DateParser.toEpochDay(from), DateParser.toEpochDay(to)));
+    }
+
+    public double getExpensesBetween(Date from, Date to) {
+        return Money.toMajor(
+                getExpensesBetweenMinor(DateParser.toEpochDay(from), DateParser.toEpochDay(to)));
+    }
+
+    public double getMonthlyExpenses(int year, int month) {
+        return Money.toMajor(dateIndex.monthTotal(TransactionStore.EXPENSE, year, month));
+    }
+
+    public double getMonthlyIncome(int year, int month) {
+        return Money.toMajor(dateIndex.monthTotal(TransactionStore.INCOME, year, month));
+    }
+
+    public List<Transaction> getTransactionsBetween(Date from, Date to) {
+        return getTransactionsBetween(DateParser.toEpochDay(from), DateParser.toEpochDay(to));
+    }
+
+    public List<Transaction> getTransactionsBetween(int fromEpochDay, int toEpochDay) {
+        return queryCache.get(QueryCache.TRANSACTIONS_BETWEEN, fromEpochDay, toEpochDay, 0, () -> {
+            List<Transaction> result = new ArrayList<>();
+            forEachTransactionBetween(fromEpochDay, toEpochDay, view -> result.add(view.detach()));
+            return Collections.unmodifiableList(result);
+        }, result -> result.size() * CACHED_TRANSACTION_BYTES);
+    }
+
+    public void forEachTransactionBetween(int fromEpochDay, int toEpochDay,
+                                          Consumer<? super TransactionStore.View> action) {
+        if (transactions.rowCount() == 0) {
+            return;
+        }
+        TransactionStore.View view = transactions.view(0);
+        int lastDay = Math.min(toEpochDay, dateIndex.getLastDay());
+        for (int day = Math.max(fromEpochDay, dateIndex.getFirstDay()); day <= lastDay; day++) {
+            for (int row = dateIndex.firstRow(day); row >= 0; row = dateIndex.nextRow(row)) {
+                if (!transactions.isRemoved(row)) {
+                    action.accept(view.moveTo(row));
+                }
+            }
+        }
+    }
+
+    public Map<String, Long> getSpendByMerchantMinor(int limit) {
+        return queryCache.get(QueryCache.MERCHANT_SPEND, startDay, endDay, limit,
+                () -> Collections.unmodifiableMap(computeSpendByMerchant(limit)),
+                spend -> spend.size() * CACHED_MAP_ENTRY_BYTES);
+    }
+
+    private Map<String, Long> computeSpendByMerchant(int limit) {
+        long[] spendById = new long[DescriptionDictionary.SHARED.size()];
+        Map<String, Long> merged = new HashMap<>();
+        for (int row = 0; row < transactions.rowCount(); row++) {
+            if (transactions.getType(row) != TransactionStore.EXPENSE) {
+                continue;
+            }
+            int descriptionId = transactions.getDescriptionId(row);
+            if (descriptionId == DescriptionDictionary.NOT_INTERNED) {
+                merged.merge(transactions.getDescription(row), transactions.getAmountMinor(row), Long::sum);
+            } else {
+                spendById[descriptionId] += transactions.getAmountMinor(row);
+            }
+        }
+        for (int id = 0; id < spendById.length; id++) {
+            if (spendById[id] != 0) {
+                merged.merge(DescriptionDictionary.SHARED.resolve(id), spendById[id], Long::sum);
+            }
+        }
+        List<Map.Entry<String, Long>> ranked = new ArrayList<>(merged.entrySet());
+        ranked.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> spend = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : ranked.subList(0, Math.min(limit, ranked.size()))) {
+            spend.put(entry.getKey(), entry.getValue());
+        }
+        return spend;
+    }
+
+    public Map<String, Double> getSpendByCategory() {
+        Map<String, Double> spend = new LinkedHashMap<>();
+        for (Category category : categoriesById) {
+            spend.put(category.getName(), category.getTotal());
+        }
+        return spend;
+    }
+
+    public Map<String, Long> getSpendByCategoryBetweenMinor(int fromEpochDay, int toEpochDay) {
+        return queryCache.get(QueryCache.CATEGORY_SPEND_BETWEEN, fromEpochDay, toEpochDay, 0, () -> {
+            long[] spendById = new long[categoriesById.size()];
+            int lastDay = Math.min(toEpochDay, dateIndex.getLastDay());
+            for (int day = Math.max(fromEpochDay, dateIndex.getFirstDay()); day <= lastDay; day++) {
+                for (int row = dateIndex.firstRow(day); row >= 0; row = dateIndex.nextRow(row)) {
+                    int categoryId = transactions.getCategoryId(row);
+                    if (categoryId != TransactionStore.NO_CATEGORY
+                            && transactions.getType(row) == TransactionStore.EXPENSE) {
+                        spendById[categoryId] += transactions.getAmountMinor(row);
+                    }
+                }
+            }
+            Map<String, Long> spend = new LinkedHashMap<>();
+            for (int id = 0; id < spendById.length; id++) {
+                if (spendById[id] != 0) {
+                    spend.put(categoriesById.get(id).getName(), spendById[id]);
+                }
+            }
+            return Collections.unmodifiableMap(spend);
+        }, spend -> spend.size() * CACHED_MAP_ENTRY_BYTES);
+    }
+
+    public BudgetReport getReport() {
+        return queryCache.get(QueryCache.REPORT, startDay, endDay, 0, () -> ReportEngine.parallel().run(this),
+                BudgetReport::getEstimatedBytes);
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    // Called when the ledger drops this budget, so the live-row gauges stop counting its rows
+    void retire() {
+        if (Metrics.ENABLED) {
+            Metrics.LIVE_TRANSACTIONS.add(-transactions.size());
+        }
+    }
+
+    public DuplicateIndex.Session beginIngest(Account account) {
+        return duplicates.beginSession(account.getAccountNumber());
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(startDay);
+        out.writeInt(endDay);
+        out.writeLong(baseIncome);
+        out.writeLong(transactionIncome);
+        out.writeLong(totalExpenses);
+        transactions.writeTo(out);
+        out.writeInt(categoriesById.size());
+        for (Category category : categoriesById) {
+            category.writeTo(out);
+        }
+        duplicates.writeTo(out);
+        int thresholdCount = thresholds == null ? 0 : thresholds.size();
+        out.writeInt(thresholdCount);
+        for (int i = 0; i < thresholdCount; i++) {
+            Threshold threshold = thresholds.get(i);
+            byte[] bytes = (threshold.categoryName == null ? "" : threshold.categoryName)
+                    .getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeDouble(threshold.percentOfIncome);
+            out.writeLong(threshold.absoluteLimitMinor);
+        }
+    }
+
+    static Budget readFrom(ByteBuffer in, DescriptionDictionary.Remap descriptions) {
+        Budget budget = Budget.ofMinor(in.getInt(), in.getInt(), 0);
+        budget.baseIncome = in.getLong();
+        budget.transactionIncome = in.getLong();
+        budget.totalExpenses = in.getLong();
+        budget.transactions = TransactionStore.readFrom(in, descriptions);
+        int categoryCount = in.getInt();
+        for (int i = 0; i < categoryCount; i++) {
+            budget.registerCategory(Category.readFrom(in));
+        }
+        budget.rebuildIndexes();
+        if (Metrics.ENABLED) {
+            Metrics.LIVE_TRANSACTIONS.add(budget.transactions.size());
+        }
+        budget.duplicates = DuplicateIndex.readFrom(in);
+        int thresholdCount = in.getInt();
+        for (int i = 0; i < thresholdCount; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            budget.addThreshold(new Threshold(emptyToNull(new String(bytes, StandardCharsets.UTF_8)),
+                    in.getDouble(), in.getLong()));
+        }
+        return budget;
+    }
+
+    private void rebuildIndexes() {
+        for (int row = 0; row < transactions.rowCount(); row++) {
+            if (!transactions.isRemoved(row)) {
+                dateIndex.add(row, transactions.getEpochDay(row), transactions.getType(row),
+                        transactions.getAmountMinor(row));
+                int categoryId = transactions.getCategoryId(row);
+                if (categoryId != TransactionStore.NO_CATEGORY) {
+                    categoriesById.get(categoryId).addExpense(row);
+                }
+            }
+        }
+    }
+
+    public boolean verifyTotals() {
+        return transactions.sum(TransactionStore.INCOME) == transactionIncome
+                && transactions.sum(TransactionStore.EXPENSE) == totalExpenses;
+    }
+}
+
+class BudgetAlert {
+    private final String categoryName;
+    private final double percentOfIncome;
+    private final long spentMinor;
+    private final long limitMinor;
+
+    public BudgetAlert(String categoryName, double percentOfIncome, long spentMinor, long limitMinor) {
+        this.categoryName = categoryName;
+        this.percentOfIncome = percentOfIncome;
+        this.spentMinor = spentMinor;
+        this.limitMinor = limitMinor;
+    }
+
+    public String getCategoryName() {
+        return categoryName;
+    }
+
+    public double getPercentOfIncome() {
+        return percentOfIncome;
+    }
+
+    public long getSpentMinor() {
+        return spentMinor;
+    }
+
+    public long getLimitMinor() {
+        return limitMinor;
+    }
+
+    public String getMessage() {
+        String target;
+        if (percentOfIncome == 100 && categoryName == null) {
+            target = "your budget";
+        } else if (percentOfIncome > 0) {
+            target = String.format(Locale.ROOT, "%s%% of your budget", formatPercent())
+                    + (categoryName == null ? "" : " on " + categoryName);
+        } else {
+            target = "your limit" + (categoryName == null ? "" : " for " + categoryName);
+        }
+        return String.format(Locale.ROOT, "Warning: You have exceeded %s! (spent %.2f, limit %.2f)", target,
+                Money.toMajor(spentMinor), Money.toMajor(limitMinor));
+    }
+
+    private String formatPercent() {
+        return percentOfIncome == Math.rint(percentOfIncome)
+                ? Long.toString((long) percentOfIncome) : Double.toString(percentOfIncome);
+    }
+}
+
+final class AlertDispatcher {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final LongAdder FIRED = Metrics.counter("alerts.fired");
+    private static final LongAdder DROPPED = Metrics.counter("alerts.dropped");
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), task -> {
+                Thread thread = new Thread(task, "budget-alerts");
+                thread.setDaemon(true);
+                return thread;
+            }, (task, executor) -> DROPPED.increment());
+
+    private AlertDispatcher() {
+    }
+
+    static void dispatch(BudgetAlert alert, List<Budget.AlertListener> listeners) {
+        FIRED.increment();
+        for (Budget.AlertListener listener : listeners) {
+            EXECUTOR.execute(() -> {
+                try {
+                    listener.alertFired(alert);
+                } catch (RuntimeException e) {
+                    System.err.println("Alert listener failed: " + e);
+                }
+            });
+        }
+    }
+
+    static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+}
+
+final class PeriodSummary {
+    private final int startDay;
+    private final int endDay;
+    private final long carriedInMinor;
+    private final long incomeMinor;
+    private final long expensesMinor;
+    private final int transactionCount;
+    private final String[] categoryNames;
+    private final long[] categoryExpensesMinor;
+
+    PeriodSummary(int startDay, int endDay, long carriedInMinor, long incomeMinor, long expensesMinor,
+                  int transactionCount, String[] categoryNames, long[] categoryExpensesMinor) {
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.carriedInMinor = carriedInMinor;
+        this.incomeMinor = incomeMinor;
+        this.expensesMinor = expensesMinor;
+        this.transactionCount = transactionCount;
+        this.categoryNames = categoryNames;
+        this.categoryExpensesMinor = categoryExpensesMinor;
+    }
+
+    static PeriodSummary freeze(Budget budget, long carriedInMinor) {
+        String[] names = new String[budget.getCategoryCount()];
+        long[] totals = new long[names.length];
+        for (int id = 0; id < names.length; id++) {
+            names[id] = budget.getCategory(id).getName();
+            totals[id] = budget.getCategory(id).getTotalMinor();
+        }
+        return new PeriodSummary(budget.getStartDay(), budget.getEndDay(), carriedInMinor,
+                budget.getIncomeMinor() - carriedInMinor, budget.getTotalExpensesMinor(),
+                budget.getTransactions().size(), names, totals);
+    }
+
+    public int getStartDay() {
+        return startDay;
+    }
+
+    public int getEndDay() {
+        return endDay;
+    }
+
+    public long getCarriedInMinor() {
+        return carriedInMinor;
+    }
+
+    public long getIncomeMinor() {
+        return incomeMinor;
+    }
+
+    public long getExpensesMinor() {
+        return expensesMinor;
+    }
+
+    public long getClosingBalanceMinor() {
+        return carriedInMinor + incomeMinor - expensesMinor;
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public Map<String, Long> getCategoryExpensesMinor() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (int i = 0; i < categoryNames.length; i++) {
+            totals.put(categoryNames[i], categoryExpensesMinor[i]);
+        }
+        return Collections.unmodifiableMap(totals);
+    }
+
+    public String getSummary() {
+        return String.format(Locale.ROOT, "%s..%s: carried in %.2f, income %.2f, expenses %.2f, closing %.2f "
+                        + "(%d transactions)", LocalDate.ofEpochDay(startDay), LocalDate.ofEpochDay(endDay),
+                Money.toMajor(carriedInMinor), Money.toMajor(incomeMinor),
+                Money.toMajor(expensesMinor), Money.toMajor(getClosingBalanceMinor()),
+                transactionCount);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(startDay);
+        out.writeInt(endDay);
+        out.writeLong(carriedInMinor);
+        out.writeLong(incomeMinor);
+        out.writeLong(expensesMinor);
+        out.writeInt(transactionCount);
+        out.writeInt(categoryNames.length);
+        for (int i = 0; i < categoryNames.length; i++) {
+            byte[] bytes = categoryNames[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeLong(categoryExpensesMinor[i]);
+        }
+    }
+
+    static PeriodSummary readFrom(ByteBuffer in) {
+        int startDay = in.getInt();
+        int endDay = in.getInt();
+        long carriedInMinor = in.getLong();
+        long incomeMinor = in.getLong();
+        long expensesMinor = in.getLong();
+        int transactionCount = in.getInt();
+        String[] names = new String[in.getInt()];
+        long[] totals = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+            totals[i] = in.getLong();
+        }
+        return new PeriodSummary(startDay, endDay, carriedInMinor, incomeMinor, expensesMinor, transactionCount,
+                names, totals);
+    }
+}
+
+class BudgetSchedule {
+    private final int firstYear;
+    private final int firstMonth;
+    private final long monthlyIncomeMinor;
+    private final boolean carryOver;
+    private final List<PeriodSummary> closedPeriods = new ArrayList<>();
+    private Budget current;
+    private long carriedInMinor;
+
+    public BudgetSchedule(int epochDay, long monthlyIncomeMinor, boolean carryOver) {
+        LocalDate first = LocalDate.ofEpochDay(epochDay);
+        this.firstYear = first.getYear();
+        this.firstMonth = first.getMonthValue();
+        this.monthlyIncomeMinor = monthlyIncomeMinor;
+        this.carryOver = carryOver;
+        this.current = openPeriod(0, 0);
+    }
+
+    static final class Rollover {
+        private final List<PeriodSummary> closed;
+        private final long carriedInMinor;
+        private final Budget budget;
+
+        private Rollover(List<PeriodSummary> closed, long carriedInMinor, Budget budget) {
+            this.closed = closed;
+            this.carriedInMinor = carriedInMinor;
+            this.budget = budget;
+        }
+
+        public Budget getBudget() {
+            return budget;
+        }
+    }
+
+    private Budget openPeriod(int index, long carriedInMinor) {
+        LocalDate start = LocalDate.of(firstYear, firstMonth, 1).plusMonths(index);
+        return Budget.ofMinor((int) start.toEpochDay(), (int) start.plusMonths(1).toEpochDay() - 1,
+                monthlyIncomeMinor + carriedInMinor);
+    }
+
+    // Opens the periods up to epochDay without closing anything yet, so a posting that is refused leaves the
+    // schedule as it was; commit() applies it
+    public Rollover prepareRollover(int epochDay) {
+        if (epochDay <= current.getEndDay()) {
+            return null;
+        }
+        List<PeriodSummary> closed = new ArrayList<>();
+        Budget period = current;
+        long carried = carriedInMinor;
+        while (epochDay > period.getEndDay()) {
+            PeriodSummary summary = PeriodSummary.freeze(period, carried);
+            closed.add(summary);
+            carried = carryOver ? summary.getClosingBalanceMinor() : 0;
+            Budget next = openPeriod(closedPeriods.size() + closed.size(), carried);
+            next.inheritAlertsFrom(period);
+            period = next;
+        }
+        return new Rollover(closed, carried, period);
+    }
+
+    public void commit(Rollover rollover) {
+        current.retire();
+        closedPeriods.addAll(rollover.closed);
+        carriedInMinor = rollover.carriedInMinor;
+        current = rollover.budget;
+    }
+
+    public boolean advanceTo(int epochDay) {
+        Rollover rollover = prepareRollover(epochDay);
+        if (rollover == null) {
+            return false;
+        }
+        commit(rollover);
+        return true;
+    }
+
+    public Budget getCurrent() {
+        return current;
+    }
+
+    public long getMonthlyIncomeMinor() {
+        return monthlyIncomeMinor;
+    }
+
+    public boolean isCarryOver() {
+        return carryOver;
+    }
+
+    public long getCarriedInMinor() {
+        return carriedInMinor;
+    }
+
+    public List<PeriodSummary> getClosedPeriods() {
+        return Collections.unmodifiableList(closedPeriods);
+    }
+
+    public PeriodSummary getPeriod(int year, int month) {
+        int index = (year * 12 + month) - (firstYear * 12 + firstMonth);
+        return index >= 0 && index < closedPeriods.size() ? closedPeriods.get(index) : null;
+    }
+
+    public PeriodSummary getPeriodContaining(int epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return getPeriod(date.getYear(), date.getMonthValue());
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(firstYear);
+        out.writeInt(firstMonth);
+        out.writeLong(monthlyIncomeMinor);
+        out.writeBoolean(carryOver);
+        out.writeLong(carriedInMinor);
+        out.writeInt(closedPeriods.size());
+        for (PeriodSummary period : closedPeriods) {
+            period.writeTo(out);
+        }
+    }
+
+    static BudgetSchedule readFrom(ByteBuffer in, Budget current) {
+        int year = in.getInt();
+        int month = in.getInt();
+        BudgetSchedule schedule = new BudgetSchedule((int) LocalDate.of(year, month, 1).toEpochDay(), in.getLong(),
+                in.get() != 0);
+        schedule.carriedInMinor = in.getLong();
+        int closed = in.getInt();
+        for (int i = 0; i < closed; i++) {
+            schedule.closedPeriods.add(PeriodSummary.readFrom(in));
+        }
+        schedule.current = current;
+        return schedule;
+    }
+}
+
+class ReportEngine {
+    private static final int SPLIT_ROWS = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    public ReportEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public static ReportEngine parallel() {
+        return new ReportEngine(ForkJoinPool.commonPool());
+    }
+
+    public static ReportEngine sequential() {
+        return new ReportEngine(null);
+    }
+
+    public BudgetReport run(Budget budget) {
+        LocalDate first = LocalDate.ofEpochDay(budget.getStartDay()).withDayOfMonth(1);
+        LocalDate last = LocalDate.ofEpochDay(budget.getEndDay());
+        int firstDay = budget.getStartDay();
+        int[] monthOfDay = new int[budget.getEndDay() - firstDay + 1];
+        int months = 0;
+        for (LocalDate month = first; !month.isAfter(last); month = month.plusMonths(1), months++) {
+            int from = Math.max(firstDay, (int) month.toEpochDay());
+            int to = Math.min(budget.getEndDay(), (int) month.plusMonths(1).toEpochDay() - 1);
+            Arrays.fill(monthOfDay, from - firstDay, to - firstDay + 1, months);
+        }
+
+        String[] categoryNames = new String[budget.getCategoryCount()];
+        for (int id = 0; id < categoryNames.length; id++) {
+            categoryNames[id] = budget.getCategory(id).getName();
+        }
+        TransactionStore store = budget.getTransactionStore();
+        Aggregation aggregation = new Aggregation(store, firstDay, monthOfDay, months, categoryNames.length, 0,
+                store.rowCount());
+        Partial totals = pool == null ? aggregation.compute() : pool.invoke(aggregation);
+        return new BudgetReport(first.getYear(), first.getMonthValue(), totals.income, totals.expenses,
+                categoryNames, totals.expensesByCategory);
+    }
+
+    private static final class Partial {
+        private final long[] income;
+        private final long[] expenses;
+        private final long[] expensesByCategory;
+
+        private Partial(int months, int categories) {
+            this.income = new long[months];
+            this.expenses = new long[months];
+            this.expensesByCategory = new long[categories];
+        }
+
+        private Partial merge(Partial other) {
+            for (int i = 0; i < income.length; i++) {
+                income[i] += other.income[i];
+                expenses[i] += other.expenses[i];
+            }
+            for (int i = 0; i < expensesByCategory.length; i++) {
+                expensesByCategory[i] += other.expensesByCategory[i];
+            }
+            return this;
+        }
+    }
+
+    private static final class Aggregation extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final TransactionStore store;
+        private final int firstDay;
+        private final int[] monthOfDay;
+        private final int months;
+        private final int categories;
+        private final int fromRow;
+        private final int toRow;
+
+        private Aggregation(TransactionStore store, int firstDay, int[] monthOfDay, int months, int categories,
+                            int fromRow, int toRow) {
+            this.store = store;
+            this.firstDay = firstDay;
+            this.monthOfDay = monthOfDay;
+            this.months = months;
+            this.categories = categories;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (toRow - fromRow <= SPLIT_ROWS || getPool() == null) {
+                Partial partial = new Partial(months, categories);
+                store.aggregate(fromRow, toRow, firstDay, monthOfDay, partial.income, partial.expenses,
+                        partial.expensesByCategory);
+                return partial;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            Aggregation left = new Aggregation(store, firstDay, monthOfDay, months, categories, fromRow, middle);
+            Aggregation right = new Aggregation(store, firstDay, monthOfDay, months, categories, middle, toRow);
+            left.fork();
+            Partial rightTotals = right.compute();
+            return left.join().merge(rightTotals);
+        }
+    }
+}
+
+class BudgetReport {
+    private final int firstYear;
+    private final int firstMonth;
+    private final long[] monthlyIncome;
+    private final long[] monthlyExpenses;
+    private final String[] categoryNames;
+    private final long[] categoryExpenses;
+
+    BudgetReport(int firstYear, int firstMonth, long[] monthlyIncome, long[] monthlyExpenses,
+                 String[] categoryNames, long[] categoryExpenses) {
+        this.firstYear = firstYear;
+        this.firstMonth = firstMonth;
+        this.monthlyIncome = monthlyIncome;
+        this.monthlyExpenses = monthlyExpenses;
+        this.categoryNames = categoryNames;
+        this.categoryExpenses = categoryExpenses;
+    }
+
+    public int getMonthCount() {
+        return monthlyIncome.length;
+    }
+
+    public int getYear(int month) {
+        return firstYear + (firstMonth - 1 + month) / 12;
+    }
+
+    public int getMonthOfYear(int month) {
+        return (firstMonth - 1 + month) % 12 + 1;
+    }
+
+    public long getIncomeMinor(int month) {
+        return monthlyIncome[month];
+    }
+
+    public long getExpensesMinor(int month) {
+        return monthlyExpenses[month];
+    }
+
+    long getEstimatedBytes() {
+        return (monthlyIncome.length * 2L + categoryExpenses.length) * Long.BYTES
+                + categoryNames.length * (long) Integer.BYTES;
+    }
+
+    public Map<String, Long> getCategoryExpensesMinor() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (int i = 0; i < categoryNames.length; i++) {
+            totals.put(categoryNames[i], categoryExpenses[i]);
+        }
+        return totals;
+    }
+
+    public long getYearlyIncomeMinor(int year) {
+        return yearlyTotal(monthlyIncome, year);
+    }
+
+    public long getYearlyExpensesMinor(int year) {
+        return yearlyTotal(monthlyExpenses, year);
+    }
+
+    private long yearlyTotal(long[] monthly, int year) {
+        long total = 0;
+        for (int month = 0; month < monthly.length; month++) {
+            if (getYear(month) == year) {
+                total += monthly[month];
+            }
+        }
+        return total;
+    }
+
+    public boolean sameTotals(BudgetReport other) {
+        return Arrays.equals(monthlyIncome, other.monthlyIncome) && Arrays.equals(monthlyExpenses, other.monthlyExpenses)
+                && Arrays.equals(categoryExpenses, other.categoryExpenses);
+    }
+
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-7s %10s %12s%n", "Month", "Income", "Expenses"));
+        for (int month = 0; month < getMonthCount(); month++) {
+            report.append(String.format(Locale.ROOT, "%04d-%02d %10.2f %12.2f%n", getYear(month),
+                    getMonthOfYear(month), Money.toMajor(monthlyIncome[month]),
+                    Money.toMajor(monthlyExpenses[month])));
+        }
+        if (categoryNames.length > 0) {
+            report.append(String.format("Category totals:%n"));
+            for (int i = 0; i < categoryNames.length; i++) {
+                report.append(String.format(Locale.ROOT, "  %s: %.2f%n", categoryNames[i],
+                        Money.toMajor(categoryExpenses[i])));
+            }
+        }
+        int lastYear = getYear(getMonthCount() - 1);
+        if (lastYear > firstYear) {
+            report.append(String.format("Year over year:%n"));
+            for (int year = firstYear + 1; year <= lastYear; year++) {
+                report.append(String.format(Locale.ROOT, "  %d: income %.2f (%s), expenses %.2f (%s)%n", year,
+                        Money.toMajor(getYearlyIncomeMinor(year)),
+                        change(getYearlyIncomeMinor(year - 1), getYearlyIncomeMinor(year)),
+                        Money.toMajor(getYearlyExpensesMinor(year)),
+                        change(getYearlyExpensesMinor(year - 1), getYearlyExpensesMinor(year))));
+            }
+        }
+        return report.toString();
+    }
+
+    private static String change(long previous, long current) {
+        if (previous == 0) {
+            return "n/a";
+        }
+        return String.format(Locale.ROOT, "%+.1f%%", (current - previous) * 100.0 / previous);
+    }
+}
+
+class QueryCache {
+    static final int REPORT = 0;
+    static final int MERCHANT_SPEND = 1;
+    static final int TRANSACTIONS_BETWEEN = 2;
+    static final int CATEGORY_SPEND_BETWEEN = 3;
+    static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("budget.queryCache.maxEntries", 128);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("budget.queryCache.maxBytes", 32L << 20);
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long estimatedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public QueryCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    private static final class Key {
+        private final int kind;
+        private final int fromDay;
+        private final int toDay;
+        private final int parameter;
+
+        Key(int kind, int fromDay, int toDay, int parameter) {
+            this.kind = kind;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.parameter = parameter;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return kind == key.kind && fromDay == key.fromDay && toDay == key.toDay && parameter == key.parameter;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((kind * 31 + fromDay) * 31 + toDay) * 31 + parameter;
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(int kind, int fromDay, int toDay, int parameter, Supplier<T> query, ToLongFunction<T> sizeOf) {
+        Key key = new Key(kind, fromDay, toDay, parameter);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+            return (T) entry.value;
+        }
+        misses++;
+        T value = query.get();
+        long bytes = ENTRY_OVERHEAD_BYTES + sizeOf.applyAsLong(value);
+        if (maxEntries > 0 && bytes <= maxBytes) {
+            entries.put(key, new Entry(value, bytes));
+            estimatedBytes += bytes;
+            evictLeastRecentlyUsed();
+        }
+        return value;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || estimatedBytes > maxBytes) {
+            estimatedBytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public void invalidate(int epochDay) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().fromDay <= epochDay && epochDay <= entry.getKey().toDay) {
+                estimatedBytes -= entry.getValue().bytes;
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    public void invalidateKind(int kind) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().kind == kind) {
+                estimatedBytes -= entry.getValue().bytes;
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    public void invalidate(int[] epochDays, int count) {
+        if (entries.isEmpty() || count == 0) {
+            return;
+        }
+        int[] days = Arrays.copyOf(epochDays, count);
+        Arrays.sort(days);
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            int index = Arrays.binarySearch(days, entry.getKey().fromDay);
+            int firstAtOrAfter = index >= 0 ? index : -index - 1;
+            if (firstAtOrAfter < count && days[firstAtOrAfter] <= entry.getKey().toDay) {
+                estimatedBytes -= entry.getValue().bytes;
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    public double getHitRatio() {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    public long getInvalidationCount() {
+        return invalidations;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.ROOT, "Query cache: %d entries, ~%,d bytes, hit ratio %.1f%% (%d hits, %d misses),"
+                        + " %d evictions, %d invalidations", entries.size(), estimatedBytes, getHitRatio() * 100,
+                hits, misses, evictions, invalidations);
+    }
+}
+
+class InterestAccrualEngine {
+    static final int POSTING_BATCH_SIZE = 4096;
+    static final String DESCRIPTION = "Interest";
+    private static final int PARTITION_SIZE = 1 << 16;
+    private static final double DAYS_PER_YEAR = 365;
+
+    interface Posting {
+        void post(int epochDay, SavingsAccount[] accounts, long[] amountsMinor, int count) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+
+    public InterestAccrualEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public static InterestAccrualEngine parallel() {
+        return new InterestAccrualEngine(ForkJoinPool.commonPool());
+    }
+
+    public static InterestAccrualEngine sequential() {
+        return new InterestAccrualEngine(null);
+    }
+
+    public long run(Collection<? extends Account> accounts, int epochDay, int days, Posting posting)
+            throws IOException {
+        List<SavingsAccount> savings = new ArrayList<>();
+        for (Account account : accounts) {
+            if (account instanceof SavingsAccount) {
+                savings.add((SavingsAccount) account);
+            }
+        }
+        int count = savings.size();
+        long[] balances = new long[count];
+        double[] ratesPercent = new double[count];
+        for (int i = 0; i < count; i++) {
+            balances[i] = savings.get(i).getBalanceMinor();
+            ratesPercent[i] = savings.get(i).getInterestRate();
+        }
+        long[] interest = new long[count];
+        accrue(balances, ratesPercent, days, interest);
+
+        SavingsAccount[] batchAccounts = new SavingsAccount[POSTING_BATCH_SIZE];
+        long[] batchAmounts = new long[POSTING_BATCH_SIZE];
+        int batchSize = 0;
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            if (interest[i] == 0) {
+                continue;
+            }
+            batchAccounts[batchSize] = savings.get(i);
+            batchAmounts[batchSize++] = interest[i];
+            total += interest[i];
+            if (batchSize == POSTING_BATCH_SIZE) {
+                posting.post(epochDay, batchAccounts, batchAmounts, batchSize);
+                batchSize = 0;
+            }
+        }
+        posting.post(epochDay, batchAccounts, batchAmounts, batchSize);
+        return total;
+    }
+
+    public void accrue(long[] balancesMinor, double[] ratesPercent, int days, long[] interestMinor) {
+        double factor = days / (100 * DAYS_PER_YEAR);
+        int length = balancesMinor.length;
+        if (pool == null || length <= PARTITION_SIZE) {
+            accrueRange(balancesMinor, ratesPercent, factor, interestMinor, 0, length);
+            return;
+        }
+        pool.invoke(new Partition(balancesMinor, ratesPercent, factor, interestMinor, 0, length));
+    }
+
+    static void accrueRange(long[] balancesMinor, double[] ratesPercent, double factor, long[] interestMinor,
+                            int from, int to) {
+        // Branch-free so C2 can vectorize it; negative results clamp to zero before rounding half up
+        for (int i = from; i < to; i++) {
+            double accrued = Math.max(0.0, balancesMinor[i] * ratesPercent[i] * factor);
+            interestMinor[i] = (long) (accrued + 0.5);
+        }
+    }
+
+    private static final class Partition extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] balancesMinor;
+        private final double[] ratesPercent;
+        private final double factor;
+        private final long[] interestMinor;
+        private final int from;
+        private final int to;
+
+        private Partition(long[] balancesMinor, double[] ratesPercent, double factor, long[] interestMinor,
+                          int from, int to) {
+            this.balancesMinor = balancesMinor;
+            this.ratesPercent = ratesPercent;
+            this.factor = factor;
+            this.interestMinor = interestMinor;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARTITION_SIZE) {
+                accrueRange(balancesMinor, ratesPercent, factor, interestMinor, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Partition(balancesMinor, ratesPercent, factor, interestMinor, from, middle),
+                    new Partition(balancesMinor, ratesPercent, factor, interestMinor, middle, to));
+        }
+    }
+}
+
+class DuplicateIndex {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final long EMPTY = 0;
+
+    private long[] fingerprints = new long[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private long[] bloom = new long[INITIAL_CAPACITY / 8];
+    private int size;
+
+    // A row is a duplicate while this import has seen fewer copies of it than the ledger held when the import
+    // first met it, so identical rows within one statement are all kept. That state lives only as long as the import.
+    class Session {
+        private final long accountHash;
+        private long[] seen = new long[INITIAL_CAPACITY];
+        private int[] baselines = new int[INITIAL_CAPACITY];
+        private int[] occurrences = new int[INITIAL_CAPACITY];
+        private int seenCount;
+        private long duplicates;
+
+        private Session(long accountHash) {
+            this.accountHash = accountHash;
+        }
+
+        public boolean isDuplicate(byte type, int epochDay, long amountMinor, String description) {
+            long fingerprint = fingerprint(accountHash, type, epochDay, amountMinor, description);
+            int slot = findSeen(fingerprint);
+            if (slot < 0) {
+                // Taken before this import's own copies are flushed into the ledger
+                slot = insertSeen(fingerprint, count(fingerprint));
+            }
+            if (occurrences[slot]++ < baselines[slot]) {
+                duplicates++;
+                return true;
+            }
+            return false;
+        }
+
+        public long getDuplicateCount() {
+            return duplicates;
+        }
+
+        private int findSeen(long fingerprint) {
+            int mask = seen.length - 1;
+            for (int slot = (int) (fingerprint >>> 16) & mask; seen[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (seen[slot] == fingerprint) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private int insertSeen(long fingerprint, int baseline) {
+            if ((seenCount + 1) * 2 > seen.length) {
+                long[] oldSeen = seen;
+                int[] oldBaselines = baselines;
+                int[] oldOccurrences = occurrences;
+                seen = new long[oldSeen.length * 2];
+                baselines = new int[seen.length];
+                occurrences = new int[seen.length];
+                for (int slot = 0; slot < oldSeen.length; slot++) {
+                    if (oldSeen[slot] != EMPTY) {
+                        place(oldSeen[slot], oldBaselines[slot], oldOccurrences[slot]);
+                    }
+                }
+            }
+            seenCount++;
+            return place(fingerprint, baseline, 0);
+        }
+
+        private int place(long fingerprint, int baseline, int occurrence) {
+            int mask = seen.length - 1;
+            int slot = (int) (fingerprint >>> 16) & mask;
+            while (seen[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            seen[slot] = fingerprint;
+            baselines[slot] = baseline;
+            occurrences[slot] = occurrence;
+            return slot;
+        }
+    }
+
+    public Session beginSession(String accountNumber) {
+        return new Session(hash(accountNumber));
+    }
+
+    public void add(String accountNumber, byte type, int epochDay, long amountMinor, String description) {
+        add(fingerprint(hash(accountNumber), type, epochDay, amountMinor, description), 1);
+    }
+
+    public void addAll(String accountNumber, TransactionBatch batch) {
+        long accountHash = hash(accountNumber);
+        for (int i = 0; i < batch.size(); i++) {
+            add(fingerprint(accountHash, batch.getType(i), batch.getEpochDay(i), batch.getAmountMinor(i),
+                    batch.getDescription(i)), 1);
+        }
+    }
+
+    private int count(long fingerprint) {
+        int slot = mightContain(fingerprint) ? find(fingerprint) : -1;
+        return slot >= 0 ? counts[slot] : 0;
+    }
+
+    private void add(long fingerprint, int count) {
+        int slot = mightContain(fingerprint) ? find(fingerprint) : -1;
+        if (slot >= 0) {
+            counts[slot] += count;
+            return;
+        }
+        if ((size + 1) * 2 > fingerprints.length) {
+            resize(fingerprints.length * 2);
+        }
+        insert(fingerprint, count);
+    }
+
+    private void insert(long fingerprint, int count) {
+        int mask = fingerprints.length - 1;
+        int slot = (int) (fingerprint >>> 16) & mask;
+        while (fingerprints[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        fingerprints[slot] = fingerprint;
+        counts[slot] = count;
+        size++;
+        bloom[bloomWord(fingerprint)] |= bloomBits(fingerprint);
+    }
+
+    private int find(long fingerprint) {
+        int mask = fingerprints.length - 1;
+        for (int slot = (int) (fingerprint >>> 16) & mask; fingerprints[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (fingerprints[slot] == fingerprint) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldFingerprints = fingerprints;
+        int[] oldCounts = counts;
+        fingerprints = new long[capacity];
+        counts = new int[capacity];
+        bloom = new long[capacity / 8];
+        size = 0;
+        for (int slot = 0; slot < oldFingerprints.length; slot++) {
+            if (oldFingerprints[slot] != EMPTY) {
+                insert(oldFingerprints[slot], oldCounts[slot]);
+            }
+        }
+    }
+
+    // Blocked Bloom filter: all four bits of a key live in one word, so a miss costs a single memory access
+    private boolean mightContain(long fingerprint) {
+        long bits = bloomBits(fingerprint);
+        return (bloom[bloomWord(fingerprint)] & bits) == bits;
+    }
+
+    private int bloomWord(long fingerprint) {
+        return (int) (fingerprint >>> 40) & (bloom.length - 1);
+    }
+
+    private static long bloomBits(long fingerprint) {
+        return 1L << fingerprint | 1L << (fingerprint >>> 6) | 1L << (fingerprint >>> 12) | 1L << (fingerprint >>> 18);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getEstimatedBytes() {
+        return fingerprints.length * (long) (Long.BYTES + Integer.BYTES) + bloom.length * (long) Long.BYTES;
+    }
+
+    static long fingerprint(long accountHash, byte type, int epochDay, long amountMinor, String description) {
+        long signedAmount = type == TransactionStore.EXPENSE ? -amountMinor : amountMinor;
+        long h = mix(accountHash ^ epochDay);
+        h = mix(h ^ signedAmount);
+        h = mix(h ^ hash(description));
+        return h == EMPTY ? 1 : h;
+    }
+
+    static long hash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int slot = 0; slot < fingerprints.length; slot++) {
+            if (fingerprints[slot] != EMPTY) {
+                out.writeLong(fingerprints[slot]);
+                out.writeInt(counts[slot]);
+            }
+        }
+    }
+
+    static DuplicateIndex readFrom(ByteBuffer in) {
+        DuplicateIndex index = new DuplicateIndex();
+        int entries = in.getInt();
+        index.resize(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, entries * 2 - 1)) << 1));
+        for (int i = 0; i < entries; i++) {
+            index.insert(in.getLong(), in.getInt());
+        }
+        return index;
+    }
+}
+
+class CsvImporter {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_REJECTED_LINES = 100;
+    static final boolean DEDUPLICATE = Boolean.parseBoolean(System.getProperty("budget.import.dedupe", "true"));
+
+    private Budget budget;
+    private final Account account;
+    private final LedgerJournal journal;
+    private final boolean budgeted;
+    private final boolean deduplicate;
+    private IntFunction<BudgetSchedule.Rollover> prepareRollover = epochDay -> null;
+    private Consumer<BudgetSchedule.Rollover> completeRollover = rollover -> { };
+    private BudgetSchedule.Rollover pendingRollover;
+    private long earlierDuplicates;
+    private final TransactionBatch batch = new TransactionBatch(BATCH_SIZE);
+    private final long[] batchLineNumbers = new long[BATCH_SIZE];
+    private long lineNumber;
+    private long importedRows;
+    private long rejectedRows;
+    private DuplicateIndex.Session duplicates;
+    private List<String> rejectedLines;
+    private long parsedAmount;
+    private long startTime;
+
+    public CsvImporter(Budget budget, Account account) {
+        this(budget, account, null);
+    }
+
+    public CsvImporter(Budget budget, Account account, LedgerJournal journal) {
+        this(budget, account, journal, true);
+    }
+
+    public CsvImporter(Budget budget, Account account, LedgerJournal journal, boolean budgeted) {
+        this(budget, account, journal, budgeted, DEDUPLICATE);
+    }
+
+    public CsvImporter(Budget budget, Account account, LedgerJournal journal, boolean budgeted,
+                       boolean deduplicate) {
+        this.budget = budget;
+        this.account = account;
+        this.journal = journal;
+        this.budgeted = budgeted;
+        this.deduplicate = deduplicate;
+    }
+
+    // Rows past the open period of a recurring budget open the period that covers them
+    public void rollPeriodsWith(IntFunction<BudgetSchedule.Rollover> prepare,
+                                Consumer<BudgetSchedule.Rollover> complete) {
+        this.prepareRollover = prepare;
+        this.completeRollover = complete;
+    }
+
+    public void begin() {
+        batch.clear();
+        lineNumber = 0;
+        importedRows = 0;
+        rejectedRows = 0;
+        duplicates = deduplicate ? budget.beginIngest(account) : null;
+        pendingRollover = null;
+        earlierDuplicates = 0;
+        rejectedLines = new ArrayList<>();
+        startTime = System.nanoTime();
+    }
+
+    public void acceptLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        parseLine(bytes, 0, bytes.length);
+    }
+
+    public ImportResult finish() throws IOException {
+        flushBatch();
+        if (Metrics.ENABLED) {
+            Metrics.CSV_IMPORT.recordSince(startTime);
+            Metrics.CSV_ROWS_IMPORTED.add(importedRows);
+            Metrics.CSV_ROWS_REJECTED.add(rejectedRows);
+            Metrics.CSV_ROWS_DUPLICATE.add(getDuplicateRows());
+        }
+        return new ImportResult(importedRows, getDuplicateRows(), rejectedRows, rejectedLines,
+                System.nanoTime() - startTime);
+    }
+
+    private long getDuplicateRows() {
+        return earlierDuplicates + (duplicates == null ? 0 : duplicates.getDuplicateCount());
+    }
+
+    public ImportResult importFile(Path path) throws IOException {
+        begin();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+            boolean skippingLongLine = false;
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                endOfFile = channel.read(buffer) == -1;
+                int limit = buffer.position();
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (bytes[i] == '\n') {
+                        if (skippingLongLine) {
+                            skippingLongLine = false;
+                        } else {
+                            parseLine(bytes, lineStart, i);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                if (endOfFile) {
+                    if (lineStart < limit && !skippingLongLine) {
+                        parseLine(bytes, lineStart, limit);
+                    }
+                } else if (lineStart == 0 && limit == bytes.length) {
+                    if (!skippingLongLine) {
+                        lineNumber++;
+                        reject(bytes, 0, 80, "line longer than " + BUFFER_SIZE + " bytes");
+                        skippingLongLine = true;
+                    }
+                    buffer.clear();
+                } else {
+                    System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                    buffer.position(limit - lineStart);
+                }
+            }
+        }
+        return finish();
+    }
+
+    private void parseLine(byte[] bytes, int start, int end) throws IOException {
+        lineNumber++;
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+        if (lineNumber == 1 && (bytes[start] < '0' || bytes[start] > '9')) {
+            return;  // Header row
+        }
+
+        int dateEnd = indexOf(bytes, start, end, (byte) ',');
+        if (dateEnd < 0) {
+            reject(bytes, start, end, "expected date,amount,description");
+            return;
+        }
+        int epochDay = DateParser.parseEpochDay(bytes, start, dateEnd);
+        if (epochDay == DateParser.INVALID) {
+            reject(bytes, start, end, "invalid date");
+            return;
+        }
+        if (!budget.covers(epochDay) && !rollTo(epochDay)) {
+            reject(bytes, start, end, "outside the budget period");
+            return;
+        }
+        int amountEnd = indexOf(bytes, dateEnd + 1, end, (byte) ',');
+        if (amountEnd < 0) {
+            reject(bytes, start, end, "expected date,amount,description");
+            return;
+        }
+        if (!parseAmount(bytes, dateEnd + 1, amountEnd)) {
+            reject(bytes, start, end, "invalid amount");
+            return;
+        }
+        String description = parseDescription(bytes, amountEnd + 1, end);
+        if (description == null) {
+            reject(bytes, start, end, "unterminated quoted description");
+            return;
+        }
+
+        byte type = parsedAmount < 0 ? TransactionStore.EXPENSE : TransactionStore.INCOME;
+        long amountMinor = Math.abs(parsedAmount);
+        if (duplicates != null && duplicates.isDuplicate(type, epochDay, amountMinor, description)) {
+            return;
+        }
+        batchLineNumbers[batch.size()] = lineNumber;
+        batch.add(type, epochDay, amountMinor, description, null);
+        if (batch.isFull()) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        if (batch.size() > 0) {
+            int result;
+            // The balance change and its journal records land together, so a snapshot never splits them
+            synchronized (journal != null ? journal : batch) {
+                result = budget.addBatch(batch, account);
+                if (result == Budget.BATCH_APPLIED) {
+                    landed();
+                }
+                if (result == Budget.BATCH_APPLIED && journal != null) {
+                    journal.appendBatch(batch, account.getAccountNumber(), budgeted);
+                }
+            }
+            if (result == Budget.BATCH_INSUFFICIENT_FUNDS) {
+                // Some row would cross the overdraft limit; post the rows one by one so only those are refused
+                postBatchRows();
+            } else if (result != Budget.BATCH_APPLIED) {
+                throw new IllegalStateException("Budget refused a validated import batch.");
+            } else {
+                importedRows += batch.size();
+            }
+            batch.clear();
+        }
+    }
+
+    // The batch so far belongs to the earlier period, so it is flushed before the importer moves on
+    private boolean rollTo(int epochDay) throws IOException {
+        if (epochDay < budget.getStartDay()) {
+            return false;
+        }
+        flushBatch();
+        BudgetSchedule.Rollover rollover = prepareRollover.apply(epochDay);
+        if (rollover == null) {
+            return false;
+        }
+        pendingRollover = rollover;
+        budget = rollover.getBudget();
+        if (duplicates != null) {
+            earlierDuplicates += duplicates.getDuplicateCount();
+            duplicates = budget.beginIngest(account);
+        }
+        return true;
+    }
+
+    // Like a single posting, the schedule only rolls over once a row has landed in the new period
+    private void landed() {
+        if (pendingRollover != null) {
+            completeRollover.accept(pendingRollover);
+            pendingRollover = null;
+        }
+    }
+
+    private void postBatchRows() throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            int result;
+            synchronized (journal != null ? journal : batch) {
+                result = budget.postRecord(batch.getType(i), batch.getEpochDay(i), batch.getAmountMinor(i),
+                        batch.getDescription(i), account, batch.getCategory(i));
+                if (result == Budget.POSTED) {
+                    landed();
+                }
+                if (result == Budget.POSTED && journal != null) {
+                    journal.appendTransaction(batch.getType(i), account.getAccountNumber(), batch.getEpochDay(i),
+                            batch.getAmountMinor(i), batch.getDescription(i), batch.getCategory(i), budgeted);
+                }
+            }
+            if (result == Budget.POSTED) {
+                importedRows++;
+            } else if (result == Budget.INSUFFICIENT_FUNDS) {
+                rejectedRows++;
+                if (rejectedLines.size() < MAX_REJECTED_LINES) {
+                    rejectedLines.add("line " + batchLineNumbers[i] + ": would exceed the overdraft limit");
+                }
+            } else {
+                throw new IllegalStateException("Budget refused a validated import row.");
+            }
+        }
+    }
+
+    private void reject(byte[] bytes, int start, int end, String reason) {
+        rejectedRows++;
+        if (rejectedLines.size() < MAX_REJECTED_LINES) {
+            rejectedLines.add("line " + lineNumber + ": " + reason + ": "
+                    + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean parseAmount(byte[] bytes, int start, int end) {
+        while (start < end && bytes[start] == ' ') {
+            start++;
+        }
+        while (end > start && bytes[end - 1] == ' ') {
+            end--;
+        }
+        boolean negative = false;
+        if (start < end && (bytes[start] == '-' || bytes[start] == '+')) {
+            negative = bytes[start] == '-';
+            start++;
+        }
+        long value = 0;
+        int integerDigits = 0;
+        int fractionDigits = -1;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && integerDigits < 16 && fractionDigits < 2) {
+                value = value * 10 + (b - '0');
+                if (fractionDigits < 0) {
+                    integerDigits++;
+                } else {
+                    fractionDigits++;
+                }
+            } else {
+                return false;
+            }
+        }
+        if (integerDigits == 0 && fractionDigits <= 0) {
+            return false;
+        }
+        for (int i = Math.max(fractionDigits, 0); i < 2; i++) {
+            value *= 10;
+        }
+        parsedAmount = negative ? -value : value;
+        return true;
+    }
+
+    private static String parseDescription(byte[] bytes, int start, int end) {
+        if (start == end || bytes[start] != '"') {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+        if (end - start < 2 || bytes[end - 1] != '"') {
+            return null;
+        }
+        String quoted = new String(bytes, start + 1, end - start - 2, StandardCharsets.UTF_8);
+        return quoted.indexOf('"') < 0 ? quoted : quoted.replace("\"\"", "\"");
+    }
+
+    static class ImportResult {
+        private final long importedRows;
+        private final long duplicateRows;
+        private final long rejectedRows;
+        private final List<String> rejectedLines;
+        private final long elapsedNanos;
+
+        public ImportResult(long importedRows, long duplicateRows, long rejectedRows, List<String> rejectedLines,
+                            long elapsedNanos) {
+            this.importedRows = importedRows;
+            this.duplicateRows = duplicateRows;
+            this.rejectedRows = rejectedRows;
+            this.rejectedLines = rejectedLines;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getImportedRows() {
+            return importedRows;
+        }
+
+        public long getDuplicateRows() {
+            return duplicateRows;
+        }
+
+        public long getRejectedRows() {
+            return rejectedRows;
+        }
+
+        public List<String> getRejectedLines() {
+            return rejectedLines;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0
+                    : (importedRows + duplicateRows + rejectedRows) * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        public String getSummary() {
+            return "Imported " + importedRows + " rows, skipped " + duplicateRows + " duplicates, rejected "
+                    + rejectedRows + " (" + Math.round(getRowsPerSecond()) + " rows/s).";
+        }
+    }
+}
+
+class LedgerJournal implements AutoCloseable {
+    static final byte ACCOUNT_CREATED = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte BUDGET_SET = 4;
+    static final byte CATEGORIZED_WITHDRAW = 5;
+    static final byte BUDGET_SCHEDULE_SET = 6;
+    static final byte INTEREST_POSTED = 7;
+    static final byte ACCOUNT_SELECTED = 8;
+    static final byte ALERT_ADDED = 9;
+    // Set on balance events written by server sessions, whose budgets live only as long as the connection
+    static final byte UNBUDGETED = (byte) 0x80;
+    static final byte SAVINGS = 1;
+    static final byte CHECKING = 2;
+    static final int DEFAULT_GROUP_COMMIT_EVENTS = 256;
+    static final long DEFAULT_GROUP_COMMIT_MILLIS = 20;
+    private static final int WRITE_THRESHOLD = 1 << 20;
+    private static final int HEADER_SIZE = 5;
+    private static final int CHECKSUM_SIZE = 4;
+
+    interface Listener {
+        void accountCreated(byte kind, String accountNumber, long initialBalanceMinor, double parameter);
+
+        void transaction(byte type, String accountNumber, int epochDay, long amountMinor, String description,
+                         String categoryName, boolean budgeted);
+
+        void budgetSet(int startEpochDay, int endEpochDay, long incomeMinor);
+
+        void budgetScheduleSet(int firstEpochDay, long monthlyIncomeMinor, boolean carryOver);
+
+        void interestPosted(int epochDay, String[] accountNumbers, long[] amountsMinor, boolean budgeted);
+
+        void accountSelected(String accountNumber);
+
+        void alertAdded(String categoryName, double percentOfIncome, long absoluteLimitMinor);
+    }
+
+    private final FileChannel channel;
+    private final int groupCommitEvents;
+    private final long groupCommitNanos;
+    private final CRC32 checksum = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(WRITE_THRESHOLD * 2);
+    private long writtenPosition;
+    private int uncommittedEvents;
+    private long firstUncommittedNanos;
+    private long appendedEvents;
+
+    public LedgerJournal(Path path) throws IOException {
+        this(path, DEFAULT_GROUP_COMMIT_EVENTS, DEFAULT_GROUP_COMMIT_MILLIS);
+    }
+
+    public LedgerJournal(Path path, int groupCommitEvents, long groupCommitMillis) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.groupCommitEvents = Math.max(1, groupCommitEvents);
+        this.groupCommitNanos = groupCommitMillis * 1_000_000L;
+        this.writtenPosition = channel.size();
+    }
+
+    public synchronized long replay(Listener listener) throws IOException {
+        return replay(listener, 0);
+    }
+
+    public synchronized long replay(Listener listener, long fromPosition) throws IOException {
+        long position = fromPosition;
+        long events = 0;
+        byte[] record = new byte[256];
+        channel.position(position);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+                if (length < 1 || length > channel.size() - position) {
+                    break;
+                }
+                if (record.length < length + CHECKSUM_SIZE) {
+                    record = new byte[Math.max(length + CHECKSUM_SIZE, record.length * 2)];
+                }
+                in.readFully(record, 0, length + CHECKSUM_SIZE);
+            } catch (EOFException e) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(record, 0, length);
+            ByteBuffer buffer = ByteBuffer.wrap(record, 0, length + CHECKSUM_SIZE);
+            if (buffer.getInt(length) != (int) checksum.getValue()) {
+                break;
+            }
+            dispatch(buffer, listener);
+            position += 4 + length + CHECKSUM_SIZE;
+            events++;
+        }
+        // Drop a torn or corrupt tail left by a crash mid-write
+        channel.truncate(position);
+        writtenPosition = position;
+        channel.position(position);
+        return events;
+    }
+
+    private static void dispatch(ByteBuffer buffer, Listener listener) {
+        byte event = buffer.get();
+        boolean budgeted = (event & UNBUDGETED) == 0;
+        switch ((byte) (event & ~UNBUDGETED)) {
+            case ACCOUNT_CREATED:
+                listener.accountCreated(buffer.get(), readString(buffer), buffer.getLong(), buffer.getDouble());
+                break;
+            case DEPOSIT:
+            case WITHDRAW:
+                byte type = (event & ~UNBUDGETED) == DEPOSIT ? TransactionStore.INCOME : TransactionStore.EXPENSE;
+                listener.transaction(type, readString(buffer), buffer.getInt(), buffer.getLong(), readString(buffer),
+                        null, budgeted);
+                break;
+            case CATEGORIZED_WITHDRAW:
+                listener.transaction(TransactionStore.EXPENSE, readString(buffer), buffer.getInt(), buffer.getLong(),
+                        readString(buffer), readString(buffer), budgeted);
+                break;
+            case BUDGET_SET:
+                listener.budgetSet(buffer.getInt(), buffer.getInt(), buffer.getLong());
+                break;
+            case BUDGET_SCHEDULE_SET:
+                listener.budgetScheduleSet(buffer.getInt(), buffer.getLong(), buffer.get() != 0);
+                break;
+            case INTEREST_POSTED:
+                int epochDay = buffer.getInt();
+                String[] accountNumbers = new String[buffer.getInt()];
+                long[] amounts = new long[accountNumbers.length];
+                for (int i = 0; i < accountNumbers.length; i++) {
+                    accountNumbers[i] = readString(buffer);
+                    amounts[i] = buffer.getLong();
+                }
+                listener.interestPosted(epochDay, accountNumbers, amounts, budgeted);
+                break;
+            case ACCOUNT_SELECTED:
+                listener.accountSelected(readString(buffer));
+                break;
+            case ALERT_ADDED:
+                listener.alertAdded(readString(buffer), buffer.getDouble(), buffer.getLong());
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal event " + event);
+        }
+    }
+
+    public synchronized void appendAccountCreated(byte kind, String accountNumber, long initialBalanceMinor,
+                                                  double parameter) throws IOException {
+        int start = beginRecord(ACCOUNT_CREATED, accountNumber.length() * 3 + 32);
+        pending.put(kind);
+        writeString(accountNumber);
+        pending.putLong(initialBalanceMinor);
+        pending.putDouble(parameter);
+        endRecord(start);
+    }
+
+    public synchronized void appendTransaction(byte type, String accountNumber, int epochDay, long amountMinor,
+                                               String description) throws IOException {
+        appendTransaction(type, accountNumber, epochDay, amountMinor, description, null);
+    }
+
+    public synchronized void appendTransaction(byte type, String accountNumber, int epochDay, long amountMinor,
+                                               String description, String categoryName) throws IOException {
+        appendTransaction(type, accountNumber, epochDay, amountMinor, description, categoryName, true);
+    }
+
+    public synchronized void appendTransaction(byte type, String accountNumber, int epochDay, long amountMinor,
+                                               String description, String categoryName, boolean budgeted)
+            throws IOException {
+        boolean categorized = type == TransactionStore.EXPENSE && categoryName != null && !categoryName.isEmpty();
+        byte event = categorized ? CATEGORIZED_WITHDRAW : type == TransactionStore.INCOME ? DEPOSIT : WITHDRAW;
+        int start = beginRecord(budgeted ? event : (byte) (event | UNBUDGETED),
+                (accountNumber.length() + description.length() + (categorized ? categoryName.length() : 0)) * 3 + 40);
+        writeString(accountNumber);
+        pending.putInt(epochDay);
+        pending.putLong(amountMinor);
+        writeString(description);
+        if (categorized) {
+            writeString(categoryName);
+        }
+        endRecord(start);
+    }
+
+    public synchronized void appendBatch(TransactionBatch batch, String accountNumber) throws IOException {
+        appendBatch(batch, accountNumber, true);
+    }
+
+    public synchronized void appendBatch(TransactionBatch batch, String accountNumber, boolean budgeted)
+            throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            appendTransaction(batch.getType(i), accountNumber, batch.getEpochDay(i), batch.getAmountMinor(i),
+                    batch.getDescription(i), batch.getCategory(i), budgeted);
+        }
+    }
+
+    public synchronized void appendBudgetSet(int startEpochDay, int endEpochDay, long incomeMinor)
+            throws IOException {
+        int start = beginRecord(BUDGET_SET, 16);
+        pending.putInt(startEpochDay);
+        pending.putInt(endEpochDay);
+        pending.putLong(incomeMinor);
+        endRecord(start);
+    }
+
+    public synchronized void appendBudgetScheduleSet(int firstEpochDay, long monthlyIncomeMinor, boolean carryOver)
+            throws IOException {
+        int start = beginRecord(BUDGET_SCHEDULE_SET, 13);
+        pending.putInt(firstEpochDay);
+        pending.putLong(monthlyIncomeMinor);
+        pending.put((byte) (carryOver ? 1 : 0));
+        endRecord(start);
+    }
+
+    public synchronized void appendAccountSelected(String accountNumber) throws IOException {
+        int start = beginRecord(ACCOUNT_SELECTED, accountNumber.length() * 3 + 4);
+        writeString(accountNumber);
+        endRecord(start);
+    }
+
+    public synchronized void appendAlertAdded(String categoryName, double percentOfIncome, long absoluteLimitMinor)
+            throws IOException {
+        int start = beginRecord(ALERT_ADDED, categoryName.length() * 3 + 20);
+        writeString(categoryName);
+        pending.putDouble(percentOfIncome);
+        pending.putLong(absoluteLimitMinor);
+        endRecord(start);
+    }
+
+    public synchronized void appendInterestPosted(int epochDay, Account[] accounts, long[] amountsMinor, int count)
+            throws IOException {
+        appendInterestPosted(epochDay, accounts, amountsMinor, count, true);
+    }
+
+    public synchronized void appendInterestPosted(int epochDay, Account[] accounts, long[] amountsMinor, int count,
+                                                  boolean budgeted) throws IOException {
+        int maxPayload = 8;
+        for (int i = 0; i < count; i++) {
+            maxPayload += accounts[i].getAccountNumber().length() * 3 + 12;
+        }
+        int start = beginRecord(budgeted ? INTEREST_POSTED : (byte) (INTEREST_POSTED | UNBUDGETED), maxPayload);
+        pending.putInt(epochDay);
+        pending.putInt(count);
+        for (int i = 0; i < count; i++) {
+            writeString(accounts[i].getAccountNumber());
+            pending.putLong(amountsMinor[i]);
+        }
+        endRecord(start);
+    }
+
+    private int beginRecord(byte event, int maxPayload) {
+        int needed = HEADER_SIZE + maxPayload + CHECKSUM_SIZE;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.putInt(0);
+        pending.put(event);
+        return start;
+    }
+
+    private void endRecord(int start) throws IOException {
+        int length = pending.position() - start - 4;
+        pending.putInt(start, length);
+        checksum.reset();
+        checksum.update(pending.array(), start + 4, length);
+        pending.putInt((int) checksum.getValue());
+
+        appendedEvents++;
+        if (uncommittedEvents++ == 0) {
+            firstUncommittedNanos = System.nanoTime();
+        }
+        if (uncommittedEvents >= groupCommitEvents || System.nanoTime() - firstUncommittedNanos >= groupCommitNanos) {
+            commit();
+        } else if (pending.position() >= WRITE_THRESHOLD) {
+            write();
+        }
+    }
+
+    private void writeString(String value) {
+        int lengthPosition = pending.position();
+        pending.putInt(0);
+        int start = pending.position();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                pending.position(start);
+                pending.put(value.getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+            pending.put((byte) c);
+        }
+        pending.putInt(lengthPosition, pending.position() - start);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private void write() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            writtenPosition += channel.write(pending, writtenPosition);
+        }
+        pending.clear();
+    }
+
+    public synchronized void commit() throws IOException {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        write();
+        if (uncommittedEvents > 0) {
+            channel.force(false);
+            uncommittedEvents = 0;
+        }
+        if (Metrics.ENABLED) {
+            Metrics.JOURNAL_COMMIT.recordSince(start);
+        }
+    }
+
+    public synchronized long position() {
+        return writtenPosition + pending.position();
+    }
+
+    public synchronized long getAppendedEvents() {
+        return appendedEvents;
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        commit();
+        channel.close();
+    }
+}
+
+class LedgerSnapshot {
+    private static final int MAGIC = 0x4254534E;
+    private static final short VERSION = 8;
+    private static final int HEADER_SIZE = 4 + 2 + 8 + 8 + 4;
+
+    private final long journalPosition;
+    private final List<Account> accounts;
+    private final String currentAccountNumber;
+    private final Budget budget;
+    private final BudgetSchedule schedule;
+    private final int lastInterestDay;
+
+    private LedgerSnapshot(long journalPosition, List<Account> accounts, String currentAccountNumber, Budget budget,
+                           BudgetSchedule schedule, int lastInterestDay) {
+        this.journalPosition = journalPosition;
+        this.accounts = accounts;
+        this.currentAccountNumber = currentAccountNumber;
+        this.budget = budget;
+        this.schedule = schedule;
+        this.lastInterestDay = lastInterestDay;
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    public List<Account> getAccounts() {
+        return accounts;
+    }
+
+    public String getCurrentAccountNumber() {
+        return currentAccountNumber;
+    }
+
+    public Budget getBudget() {
+        return budget;
+    }
+
+    public BudgetSchedule getSchedule() {
+        return schedule;
+    }
+
+    public int getLastInterestDay() {
+        return lastInterestDay;
+    }
+
+    public static void write(Path path, long journalPosition, User user, Account current, Budget budget,
+                             BudgetSchedule schedule, int lastInterestDay) throws IOException {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(user.getAccounts().size());
+            for (Account account : user.getAccounts()) {
+                boolean savings = account instanceof SavingsAccount;
+                out.writeByte(savings ? LedgerJournal.SAVINGS : LedgerJournal.CHECKING);
+                writeString(out, account.getAccountNumber());
+                out.writeLong(account.getBalanceMinor());
+                out.writeDouble(savings ? ((SavingsAccount) account).getInterestRate()
+                        : ((CheckingAccount) account).getOverdraftLimit());
+            }
+            writeString(out, current == null ? "" : current.getAccountNumber());
+            out.writeInt(lastInterestDay);
+            out.writeBoolean(budget != null);
+            if (budget != null) {
+                DescriptionDictionary.SHARED.writeTo(out);
+                budget.writeTo(out);
+                out.writeBoolean(schedule != null);
+                if (schedule != null) {
+                    schedule.writeTo(out);
+                }
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putLong(journalPosition).putLong(out.size());
+            header.putInt((int) checked.getChecksum().getValue());
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (Metrics.ENABLED) {
+            Metrics.SNAPSHOT_WRITE.recordSince(start);
+        }
+    }
+
+    public static LedgerSnapshot read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+                throw new IOException("Not a ledger snapshot: " + path);
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            long journalPosition = in.getLong();
+            long bodyLength = in.getLong();
+            int expectedChecksum = in.getInt();
+            if (bodyLength != in.remaining()) {
+                throw new IOException("Truncated snapshot: " + path);
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(in.slice());
+            if ((int) checksum.getValue() != expectedChecksum) {
+                throw new IOException("Snapshot checksum mismatch: " + path);
+            }
+
+            int accountCount = in.getInt();
+            List<Account> accounts = new ArrayList<>(accountCount);
+            for (int i = 0; i < accountCount; i++) {
+                byte kind = in.get();
+                String accountNumber = readString(in);
+                long balanceMinor = in.getLong();
+                double parameter = in.getDouble();
+                accounts.add(kind == LedgerJournal.SAVINGS
+                        ? SavingsAccount.ofMinor(accountNumber, balanceMinor, parameter)
+                        : CheckingAccount.ofMinor(accountNumber, balanceMinor, parameter));
+            }
+            String currentAccountNumber = readString(in);
+            int lastInterestDay = in.getInt();
+            Budget budget = null;
+            BudgetSchedule schedule = null;
+            if (in.get() != 0) {
+                budget = Budget.readFrom(in, DescriptionDictionary.SHARED.readFrom(in));
+                schedule = in.get() != 0 ? BudgetSchedule.readFrom(in, budget) : null;
+            }
+            return new LedgerSnapshot(journalPosition, accounts, currentAccountNumber, budget, schedule,
+                    lastInterestDay);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+class BudgetServer {
+    private static final int BACKLOG = 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 1024;
+    private static final long PLATFORM_THREAD_STACK_SIZE = 256 * 1024;
+
+    private final int port;
+    private final PersonalBudgetTracker owner;
+
+    public BudgetServer(int port, PersonalBudgetTracker owner) {
+        this.port = port;
+        this.owner = owner;
+    }
+
+    public void serve() throws IOException {
+        ExecutorService sessions = newSessionExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress())) {
+            System.out.println("Serving budget sessions on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> runSession(socket));
+            }
+        } finally {
+            sessions.shutdown();
+        }
+    }
+
+    private void runSession(Socket socket) {
+        try (Socket connection = socket) {
+            PrintStream out = new PrintStream(
+                    new BufferedOutputStream(connection.getOutputStream(), OUTPUT_BUFFER_SIZE), false, "UTF-8");
+            // Flush pending prompts before blocking for the client's next line
+            InputStream in = new FilterInputStream(connection.getInputStream()) {
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    out.flush();
+                    return super.read(buffer, offset, length);
+                }
+            };
+            owner.newSession(new ScannerInput(new Scanner(in, StandardCharsets.UTF_8)), out).start();
+            out.flush();
+        } catch (IOException | NoSuchElementException e) {
+            // Client disconnected or sent input the menu could not parse
+        }
+    }
+
+    private static ExecutorService newSessionExecutor() {
+        try {
+            // Virtual threads (JDK 21+) keep idle sessions down to a few hundred bytes of stack each
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicLong sessionIds = new AtomicLong();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, "session-" + sessionIds.incrementAndGet(),
+                        PLATFORM_THREAD_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+interface CommandInput {
+    boolean hasNextCommand();
+
+    String readLine();
+
+    int readInt();
+
+    double readDouble();
+
+    boolean isInteractive();
+
+    void close();
+}
+
+class ScannerInput implements CommandInput {
+    private final Scanner scanner;
+
+    public ScannerInput(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    @Override
+    public boolean hasNextCommand() {
+        return scanner.hasNext();
+    }
+
+    @Override
+    public String readLine() {
+        return scanner.nextLine();
+    }
+
+    @Override
+    public int readInt() {
+        int value = scanner.nextInt();
+        scanner.nextLine();  // Consume newline
+        return value;
+    }
+
+    @Override
+    public double readDouble() {
+        double value = scanner.nextDouble();
+        scanner.nextLine();  // Consume newline
+        return value;
+    }
+
+    @Override
+    public boolean isInteractive() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        scanner.close();
+    }
+}
+
+class ScriptTokenizer implements CommandInput {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private final InputStream in;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private long lineNumber;
+    private boolean endOfInput;
+
+    public ScriptTokenizer(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public boolean hasNextCommand() {
+        skipWhitespace();
+        return position < limit;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public String readLine() {
+        nextLine();
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int readInt() {
+        skipWhitespace();
+        nextLine();
+        int end = tokenEnd();
+        int i = lineStart;
+        boolean negative = i < end && buffer[i] == '-';
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            i++;
+        }
+        if (i == end) {
+            throw mismatch("a whole number", end);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw mismatch("a whole number", end);
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw mismatch("a whole number", end);
+        }
+        return (int) value;
+    }
+
+    @Override
+    public double readDouble() {
+        skipWhitespace();
+        nextLine();
+        int end = tokenEnd();
+        int i = lineStart;
+        boolean negative = i < end && buffer[i] == '-';
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end && digits <= MAX_EXACT_DIGITS; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && digits > 0 && digits <= MAX_EXACT_DIGITS) {
+            // Both operands are exact doubles, so the quotient is rounded the same way parseDouble rounds
+            double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+            return negative ? -value : value;
+        }
+        String text = new String(buffer, lineStart, end - lineStart, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw mismatch("a number", end);
+        }
+    }
+
+    @Override
+    public boolean isInteractive() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void skipWhitespace() {
+        while (true) {
+            while (position < limit && buffer[position] <= ' ') {
+                if (buffer[position] == '\n') {
+                    lineNumber++;
+                }
+                position++;
+            }
+            if (position < limit || !fill()) {
+                return;
+            }
+        }
+    }
+
+    private void nextLine() {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buffer[scan] == '\n') {
+                    setLine(position, scan);
+                    position = scan + 1;
+                    return;
+                }
+            }
+            int consumed = position;
+            if (!fill()) {
+                if (position == limit) {
+                    throw new NoSuchElementException("Script ended on line " + lineNumber + " in the middle of a command");
+                }
+                setLine(position, limit);
+                position = limit;
+                return;
+            }
+            scan -= consumed;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        lineStart = start;
+        lineEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+        lineNumber++;
+    }
+
+    private int tokenEnd() {
+        int end = lineStart;
+        while (end < lineEnd && buffer[end] > ' ') {
+            end++;
+        }
+        return end;
+    }
+
+    private boolean fill() {
+        if (endOfInput) {
+            return false;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        try {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private InputMismatchException mismatch(String expected, int end) {
+        return new InputMismatchException("Line " + lineNumber + ": expected " + expected + " but found \""
+                + new String(buffer, lineStart, end - lineStart, StandardCharsets.UTF_8) + "\"");
+    }
+}
+
+public class After {
+    private static final String DEFAULT_JOURNAL = "budget-tracker.journal";
+
+    private static final int DEFAULT_PORT = 7070;
+
+    private static final long DEFAULT_METRICS_DUMP_SECONDS = 60;
+
+    private static final int SCRIPT_OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        boolean serve = args.length > 0 && args[0].equals("serve");
+        boolean script = args.length > 0 && args[0].equals("script");
+        if (script && args.length < 2) {
+            System.err.println("Usage: java After script <file|-> [journal-file]");
+            System.exit(1);
+        }
+        int port = serve && args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        String journalArgument = serve || script ? (args.length > 2 ? args[2] : null)
+                : (args.length > 0 ? args[0] : null);
 
-    public void withdraw(double amount) {
-        balance -= amount;
+        Path journalPath = Paths.get(journalArgument != null ? journalArgument : DEFAULT_JOURNAL);
+        Path snapshotPath = journalPath.resolveSibling(journalPath.getFileName() + ".snapshot");
+        if (Metrics.ENABLED && System.getProperty("budget.metrics.dump") != null) {
+            Metrics.startDump(Paths.get(System.getProperty("budget.metrics.dump")),
+                    Long.getLong("budget.metrics.dumpSeconds", DEFAULT_METRICS_DUMP_SECONDS));
+        }
+        LedgerJournal journal = new LedgerJournal(journalPath);
+        if (script) {
+            runScript(args[1], journal, snapshotPath);
+            return;
+        }
+        PersonalBudgetTracker personalBudgetTracker = new PersonalBudgetTracker(journal, snapshotPath);
+        if (serve) {
+            new BudgetServer(port, personalBudgetTracker).serve();
+        } else {
+            personalBudgetTracker.start();
+        }
     }
 
-    public abstract void displayAccountInfo();
-
-    public void processTransaction(Transaction transaction) {
-        if (transaction instanceof IncomeTransaction) {
-            deposit(transaction.getAmount());
-        } else if (transaction instanceof ExpenseTransaction) {
-            withdraw(transaction.getAmount());
+    private static void runScript(String file, LedgerJournal journal, Path snapshotPath) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                SCRIPT_OUTPUT_BUFFER_SIZE), false, "UTF-8");
+        InputStream in = file.equals("-") ? System.in : Files.newInputStream(Paths.get(file));
+        try {
+            new PersonalBudgetTracker(new ScriptTokenizer(in), out, journal, snapshotPath).start();
+        } finally {
+            // Whatever stopped the script, the commands it already applied stay in the journal
+            journal.close();
+            out.flush();
         }
     }
 }
 
-class SavingsAccount extends Account {
-    private double interestRate;
+class PersonalBudgetTracker {
+    private Budget budget;
+    private BudgetSchedule schedule;
+    private int lastInterestDay = DateParser.INVALID;
+    private Account account;
+    private User user;
+    private static final long SNAPSHOT_INTERVAL_EVENTS = 100_000;
+    private static final int TOP_MERCHANTS = 10;
+    private LedgerJournal journal;
+    private Path snapshotPath;
+    private long eventsAtLastSnapshot;
+    private PersonalBudgetTracker owner;
+    private boolean ownsResources;
+    private boolean running;
+    private CommandInput input;
+    private boolean interactive;
+    private PrintStream out;
+    private Map<Integer, Runnable> menuOptions;
+    private final Map<Integer, LatencyHistogram> commandTimers = new HashMap<>();
+    private final Queue<BudgetAlert> pendingAlerts = new ConcurrentLinkedQueue<>();
 
-    public SavingsAccount(String accountNumber, double initialBalance, double interestRate) {
-        super(accountNumber, "Savings", initialBalance);
-        this.interestRate = interestRate;
+    public PersonalBudgetTracker() {
+        this(new Scanner(System.in), System.out, new User("default", ""), null);
+        this.ownsResources = true;
     }
 
-    @Override
-    public void displayAccountInfo() {
-        System.out.println("Savings Account - Account Number: " + getAccountNumber() + ", Balance: " + getBalance() + ", Interest Rate: " + interestRate);
+    public PersonalBudgetTracker(Scanner scanner, PrintStream out, User user, LedgerJournal journal) {
+        this(new ScannerInput(scanner), out, user, journal);
     }
-}
-
-class CheckingAccount extends Account {
-    private double overdraftLimit;
 
-    public CheckingAccount(String accountNumber, double initialBalance, double overdraftLimit) {
-        super(accountNumber, "Checking", initialBalance);
-        this.overdraftLimit = overdraftLimit;
+    public PersonalBudgetTracker(CommandInput input, PrintStream out, User user, LedgerJournal journal) {
+        this.budget = null;
+        this.account = null;
+        this.user = user;
+        this.journal = journal;
+        this.input = input;
+        this.interactive = input.isInteractive();
+        this.out = out;
+        this.menuOptions = new HashMap<>();
+        initializeMenuOptions();
     }
 
-    @Override
-    public void displayAccountInfo() {
-        System.out.println("Checking Account - Account Number: " + getAccountNumber() + ", Balance: " + getBalance() + ", Overdraft Limit: " + overdraftLimit);
+    public PersonalBudgetTracker(LedgerJournal journal, Path snapshotPath) throws IOException {
+        this(new ScannerInput(new Scanner(System.in)), System.out, journal, snapshotPath);
     }
-}
 
-abstract class Transaction {
-    private Date date;
-    private double amount;
-    private String description;
+    public PersonalBudgetTracker(CommandInput input, PrintStream out, LedgerJournal journal, Path snapshotPath)
+            throws IOException {
+        this(input, out, new User("default", ""), journal);
+        this.ownsResources = true;
+        this.snapshotPath = snapshotPath;
 
-    public Transaction(Date date, double amount, String description) {
-        this.date = date;
-        this.amount = amount;
-        this.description = description;
+        long replayFrom = 0;
+        LedgerSnapshot snapshot = null;
+        try {
+            snapshot = LedgerSnapshot.read(snapshotPath);
+        } catch (IOException e) {
+            out.println("Ignoring snapshot: " + e.getMessage());
+        }
+        if (snapshot != null && snapshot.getJournalPosition() <= journal.size()) {
+            for (Account restored : snapshot.getAccounts()) {
+                user.addAccount(restored);
+            }
+            account = user.getAccount(snapshot.getCurrentAccountNumber());
+            budget = snapshot.getBudget();
+            schedule = snapshot.getSchedule();
+            lastInterestDay = snapshot.getLastInterestDay();
+            replayFrom = snapshot.getJournalPosition();
+        }
+        long events = journal.replay(new JournalReplayer(), replayFrom);
+        if (snapshot != null || events > 0) {
+            out.println("Restored " + (snapshot != null ? "snapshot and " : "") + events + " journal events.");
+        }
+        if (events >= SNAPSHOT_INTERVAL_EVENTS) {
+            writeSnapshot();
+        }
+        watchBudget();
     }
 
-    public double getAmount() {
-        return amount;
+    public User getUser() {
+        return user;
     }
 
-    public String getTransactionDetails() {
-        return "Date: " + date + ", Amount: " + amount + ", Description: " + description;
+    // A server session shares this tracker's accounts and journal but keeps its budget to itself
+    PersonalBudgetTracker newSession(CommandInput input, PrintStream out) {
+        PersonalBudgetTracker session = new PersonalBudgetTracker(input, out, user, journal);
+        session.owner = this;
+        return session;
     }
 
-    public abstract void processTransaction(Account account);
-}
-
-class IncomeTransaction extends Transaction {
-    public IncomeTransaction(Date date, double amount, String description) {
-        super(date, amount, description);
+    private boolean isSession() {
+        return owner != null;
     }
 
-    @Override
-    public void processTransaction(Account account) {
-        account.deposit(getAmount());
+    // Shared account balances change together with their journal record, so a snapshot never splits them
+    private Object ledgerLock() {
+        return journal != null ? journal : this;
     }
-}
 
-class ExpenseTransaction extends Transaction {
-    public ExpenseTransaction(Date date, double amount, String description) {
-        super(date, amount, description);
+    private void postInterest(Account target, int epochDay, long amountMinor) {
+        if (target == account && budget != null && budget.covers(epochDay)) {
+            budget.addTransaction(IncomeTransaction.ofMinor(epochDay, amountMinor, InterestAccrualEngine.DESCRIPTION),
+                    account);
+        } else {
+            target.depositMinor(amountMinor);
+        }
     }
 
-    @Override
-    public void processTransaction(Account account) {
-        account.withdraw(getAmount());
+    private BudgetSchedule.Rollover prepareRollover(int epochDay) {
+        return schedule != null ? schedule.prepareRollover(epochDay) : null;
     }
-}
 
-class Category {
-    private String name;
-    private List<Transaction> expenses;
-
-    public Category(String name) {
-        this.name = name;
-        this.expenses = new ArrayList<>();
+    // The next period inherits the current one's alerts, so this does not watch the new budget again
+    private void completeRollover(BudgetSchedule.Rollover rollover) {
+        if (rollover != null) {
+            schedule.commit(rollover);
+            budget = schedule.getCurrent();
+            out.println("Started a new budget period " + LocalDate.ofEpochDay(budget.getStartDay()) + ".."
+                    + LocalDate.ofEpochDay(budget.getEndDay()) + ".");
+        }
     }
 
-    public void addExpense(Transaction transaction) {
-        expenses.add(transaction);
+    private void dropBudget() {
+        if (budget != null) {
+            budget.retire();
+        }
     }
 
-    public void removeExpense(Transaction transaction) {
-        expenses.remove(transaction);
+    private void rollBudgetTo(int epochDay) {
+        completeRollover(prepareRollover(epochDay));
     }
 
-    public List<Transaction> getExpenses() {
-        return expenses;
+    private void watchBudget() {
+        if (budget != null) {
+            budget.addSynchronousAlertListener(pendingAlerts::add);
+            budget.addThreshold(null, 100);
+        }
     }
-}
-
-class Budget {
-    private Date startDate;
-    private Date endDate;
-    private double income;
-    private List<Transaction> transactions;
 
-    public Budget(Date startDate, Date endDate, double income) {
-        this.startDate = startDate;
-        this.endDate = endDate;
-        this.income = income;
-        this.transactions = new ArrayList<>();
+    private void printAlerts() {
+        BudgetAlert alert;
+        while ((alert = pendingAlerts.poll()) != null) {
+            out.println(alert.getMessage());
+        }
     }
 
-    public double getIncome() {
-        return income;
+    private void maybeWriteSnapshot() {
+        if (isSession()) {
+            owner.maybeWriteSnapshot();
+            return;
+        }
+        if (snapshotPath == null) {
+            return;
+        }
+        synchronized (journal) {
+            if (journal.getAppendedEvents() - eventsAtLastSnapshot >= SNAPSHOT_INTERVAL_EVENTS) {
+                writeSnapshot();
+            }
+        }
     }
 
-    public void setIncome(double income) {
-        this.income = income;
+    private void writeSnapshot() {
+        synchronized (journal) {
+            try {
+                journal.commit();
+                LedgerSnapshot.write(snapshotPath, journal.position(), user, account, budget, schedule,
+                        lastInterestDay);
+                eventsAtLastSnapshot = journal.getAppendedEvents();
+            } catch (IOException e) {
+                out.println("Could not write snapshot: " + e.getMessage());
+            }
+        }
     }
 
-    public void addTransaction(Transaction transaction, Account account) {
-        account.processTransaction(transaction);
-        transactions.add(transaction);
+    private interface JournalWrite {
+        void run() throws IOException;
     }
 
-    public void removeTransaction(Transaction transaction) {
-        transactions.remove(transaction);
+    private void record(JournalWrite write) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write.run();
+            // Scripts lean on the journal's group commit; a person at the prompt expects each command to be durable
+            if (interactive) {
+                journal.commit();
+            }
+        } catch (IOException e) {
+            out.println("Could not write to the journal: " + e.getMessage());
+            return;
+        }
+        maybeWriteSnapshot();
     }
 
-    public String getBudgetSummary() {
-        double totalExpenses = 0;
-        for (Transaction transaction : transactions) {
-            if (transaction instanceof ExpenseTransaction) {
-                totalExpenses += transaction.getAmount();
+    private class JournalReplayer implements LedgerJournal.Listener {
+        @Override
+        public void accountCreated(byte kind, String accountNumber, long initialBalanceMinor, double parameter) {
+            Account created = kind == LedgerJournal.SAVINGS
+                    ? SavingsAccount.ofMinor(accountNumber, initialBalanceMinor, parameter)
+                    : CheckingAccount.ofMinor(accountNumber, initialBalanceMinor, parameter);
+            if (user.addAccount(created)) {
+                account = created;
             }
         }
-        return "Income: " + income + ", Total Expenses: " + totalExpenses + ", Balance: " + (income - totalExpenses);
-    }
 
-    public boolean isBudgetExceeded() {
-        double totalExpenses = 0;
-        for (Transaction transaction : transactions) {
-            if (transaction instanceof ExpenseTransaction) {
-                totalExpenses += transaction.getAmount();
+        @Override
+        public void transaction(byte type, String accountNumber, int epochDay, long amountMinor, String description,
+                                String categoryName, boolean budgeted) {
+            Account target = user.getAccount(accountNumber);
+            if (target == null) {
+                return;
+            }
+            if (budgeted && schedule != null && schedule.advanceTo(epochDay)) {
+                budget = schedule.getCurrent();
+            }
+            // The balance change stands even when no budget covers the date
+            if (budgeted && budget != null
+                    && budget.addRecord(type, epochDay, amountMinor, description, target, categoryName)) {
+                return;
+            }
+            if (type == TransactionStore.INCOME) {
+                target.depositMinor(amountMinor);
+            } else {
+                target.postWithdrawalMinor(amountMinor);
             }
         }
-        return totalExpenses > income;
-    }
-}
 
-public class After {
-    public static void main(String[] args) {
-        PersonalBudgetTracker personalBudgetTracker = new PersonalBudgetTracker();
-        personalBudgetTracker.start();
-    }
-}
+        @Override
+        public void budgetSet(int startEpochDay, int endEpochDay, long incomeMinor) {
+            if (endEpochDay < startEpochDay || endEpochDay - startEpochDay >= Budget.MAX_PERIOD_DAYS) {
+                return;
+            }
+            dropBudget();
+            budget = Budget.ofMinor(startEpochDay, endEpochDay, incomeMinor);
+            schedule = null;
+        }
 
-class PersonalBudgetTracker {
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-    private Budget budget;
-    private Account account;
-    private Scanner scanner;
-    private Map<Integer, Runnable> menuOptions;
+        @Override
+        public void budgetScheduleSet(int firstEpochDay, long monthlyIncomeMinor, boolean carryOver) {
+            dropBudget();
+            schedule = new BudgetSchedule(firstEpochDay, monthlyIncomeMinor, carryOver);
+            budget = schedule.getCurrent();
+        }
 
-    public PersonalBudgetTracker() {
-        this.budget = null;
-        this.account = null;
-        this.scanner = new Scanner(System.in);
-        this.menuOptions = new HashMap<>();
-        initializeMenuOptions();
+        @Override
+        public void interestPosted(int epochDay, String[] accountNumbers, long[] amountsMinor, boolean budgeted) {
+            if (budgeted && schedule != null && schedule.advanceTo(epochDay)) {
+                budget = schedule.getCurrent();
+            }
+            for (int i = 0; i < accountNumbers.length; i++) {
+                Account target = user.getAccount(accountNumbers[i]);
+                if (target != null && budgeted) {
+                    postInterest(target, epochDay, amountsMinor[i]);
+                } else if (target != null) {
+                    target.depositMinor(amountsMinor[i]);
+                }
+            }
+            lastInterestDay = Math.max(lastInterestDay, epochDay);
+        }
+
+        @Override
+        public void accountSelected(String accountNumber) {
+            Account selected = user.getAccount(accountNumber);
+            if (selected != null) {
+                account = selected;
+            }
+        }
+
+        @Override
+        public void alertAdded(String categoryName, double percentOfIncome, long absoluteLimitMinor) {
+            if (budget == null) {
+                return;
+            }
+            if (percentOfIncome > 0) {
+                budget.addThreshold(categoryName, percentOfIncome);
+            } else {
+                budget.addAbsoluteThreshold(categoryName, absoluteLimitMinor);
+            }
+        }
     }
 
     private void initializeMenuOptions() {
@@ -253,87 +5003,241 @@ class PersonalBudgetTracker {
         menuOptions.put(5, this::createAccount);
         menuOptions.put(6, this::displayAccountInfo);
         menuOptions.put(7, this::exitProgram);
+        menuOptions.put(8, this::importStatement);
+        menuOptions.put(9, this::viewSpendingByCategory);
+        menuOptions.put(10, this::viewTransactionsBetweenDates);
+        menuOptions.put(11, this::addTransactionsInBulk);
+        menuOptions.put(12, this::viewMetrics);
+        menuOptions.put(13, this::viewSpendingByMerchant);
+        menuOptions.put(14, this::viewMonthlyReport);
+        menuOptions.put(15, this::addSpendingAlert);
+        menuOptions.put(16, this::setRecurringBudget);
+        menuOptions.put(17, this::viewBudgetPeriods);
+        menuOptions.put(18, this::runInterestAccrual);
+        menuOptions.put(19, this::selectAccount);
     }
 
     public void start() {
-        while (true) {
-            printMenu();
-            int choice = scanner.nextInt();
-            scanner.nextLine();  // Consume newline
-
-            Runnable selectedOption = menuOptions.get(choice);
-            if (selectedOption != null) {
-                selectedOption.run();
-            } else {
-                System.out.println("Invalid option. Please try again.");
+        running = true;
+        while (running) {
+            if (interactive) {
+                printMenu();
+            }
+            if (!input.hasNextCommand()) {
+                exitProgram();
+                break;
             }
+            try {
+                runCommand(input.readInt());
+            } catch (NoSuchElementException e) {
+                if (interactive) {
+                    throw e;
+                }
+                // A malformed or truncated script would feed every later line to the wrong prompt
+                out.println("Stopping the script: " + e.getMessage());
+                exitProgram();
+            } catch (RuntimeException e) {
+                out.println("Command failed: " + e);
+            }
+            printAlerts();
+        }
+    }
+
+    private void runCommand(int choice) {
+        Runnable selectedOption = menuOptions.get(choice);
+        if (selectedOption != null && Metrics.ENABLED) {
+            long start = System.nanoTime();
+            selectedOption.run();
+            commandTimers.computeIfAbsent(choice, option -> Metrics.timer("command." + option)).recordSince(start);
+        } else if (selectedOption != null) {
+            selectedOption.run();
+        } else {
+            out.println("Invalid option. Please try again.");
         }
     }
 
     private void printMenu() {
-        System.out.println("\n--- Personal Budget Tracker ---");
-        System.out.println("1. Set Budget");
-        System.out.println("2. Add Income");
-        System.out.println("3. Add Expense");
-        System.out.println("4. View Budget Summary");
-        System.out.println("5. Create Account");
-        System.out.println("6. Display Account Info");
-        System.out.println("7. Exit");
-        System.out.print("Choose an option: ");
+        out.println("\n--- Personal Budget Tracker ---");
+        out.println("1. Set Budget");
+        out.println("2. Add Income");
+        out.println("3. Add Expense");
+        out.println("4. View Budget Summary");
+        out.println("5. Create Account");
+        out.println("6. Display Account Info");
+        out.println("7. Exit");
+        out.println("8. Import CSV Statement");
+        out.println("9. View Spending by Category");
+        out.println("10. View Transactions Between Dates");
+        out.println("11. Add Transactions in Bulk");
+        out.println("12. View Metrics");
+        out.println("13. View Top Merchants");
+        out.println("14. View Monthly Report");
+        out.println("15. Add Spending Alert");
+        out.println("16. Set Recurring Monthly Budget");
+        out.println("17. View Budget Periods");
+        out.println("18. Accrue Savings Interest");
+        out.println("19. Select Account");
+        out.print("Choose an option: ");
     }
 
     private void setBudget() {
         try {
-            Date startDate = getInputDate(scanner, "Enter start date (yyyy-MM-dd): ");
-            Date endDate = getInputDate(scanner, "Enter end date (yyyy-MM-dd): ");
-            double income = getInputIncome(scanner);
+            String startText = getInputString("Enter start date (yyyy-MM-dd): ");
+            String endText = getInputString("Enter end date (yyyy-MM-dd): ");
+            double income = getInputIncome();
+            int startDate = parseDate(startText);
+            int endDate = parseDate(endText);
+            if (endDate < startDate) {
+                out.println("End date must not be before start date.");
+                return;
+            }
+            if (endDate - startDate >= Budget.MAX_PERIOD_DAYS) {
+                out.println("A budget period can span at most 100 years.");
+                return;
+            }
+            if (!Money.isValid(income)) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
 
+            dropBudget();
             budget = new Budget(startDate, endDate, income);
-            System.out.println("Budget set successfully.");
+            schedule = null;
+            watchBudget();
+            if (!isSession()) {
+                record(() -> journal.appendBudgetSet(startDate, endDate, Money.ofMajor(income)));
+            }
+            out.println("Budget set successfully.");
+        } catch (ParseException e) {
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
+        }
+    }
+
+    private void setRecurringBudget() {
+        try {
+            String firstText = getInputString("Enter a date in the first month (yyyy-MM-dd): ");
+            double income = getInputIncome();
+            boolean carryOver = getInputString("Carry unspent balance into the next month? (y/n): ")
+                    .trim().equalsIgnoreCase("y");
+            int firstDate = parseDate(firstText);
+            if (!Money.isValid(income)) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
+
+            dropBudget();
+            schedule = new BudgetSchedule(firstDate, Money.ofMajor(income), carryOver);
+            budget = schedule.getCurrent();
+            watchBudget();
+            if (!isSession()) {
+                record(() -> journal.appendBudgetScheduleSet(firstDate, Money.ofMajor(income), carryOver));
+            }
+            out.println("Recurring budget set successfully.");
+        } catch (ParseException e) {
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
+        }
+    }
+
+    private void viewBudgetPeriods() {
+        if (schedule == null) {
+            out.println("No recurring budget set.");
+            return;
+        }
+        for (PeriodSummary period : schedule.getClosedPeriods()) {
+            out.println(period.getSummary());
+        }
+        out.println(LocalDate.ofEpochDay(budget.getStartDay()) + ".." + LocalDate.ofEpochDay(budget.getEndDay())
+                + " (open): carried in " + Money.format(schedule.getCarriedInMinor()) + ", "
+                + budget.getBudgetSummary());
+    }
+
+    private void runInterestAccrual() {
+        try {
+            int day = getInputDate("Accrue interest through date (yyyy-MM-dd): ");
+            // Accrual covers every shared account, so sessions check and advance the owner's accrual day
+            PersonalBudgetTracker ledger = isSession() ? owner : this;
+            int days;
+            long posted;
+            synchronized (ledgerLock()) {
+                if (ledger.lastInterestDay != DateParser.INVALID && day <= ledger.lastInterestDay) {
+                    out.println("Interest has already been accrued through "
+                            + LocalDate.ofEpochDay(ledger.lastInterestDay) + ".");
+                    return;
+                }
+                days = ledger.lastInterestDay == DateParser.INVALID ? 1 : day - ledger.lastInterestDay;
+                rollBudgetTo(day);
+                posted = InterestAccrualEngine.parallel().run(user.getAccounts(), day, days,
+                        (epochDay, accounts, amountsMinor, count) -> {
+                            if (journal != null) {
+                                journal.appendInterestPosted(epochDay, accounts, amountsMinor, count, !isSession());
+                            }
+                            for (int i = 0; i < count; i++) {
+                                postInterest(accounts[i], epochDay, amountsMinor[i]);
+                            }
+                        });
+                ledger.lastInterestDay = day;
+            }
+            if (journal != null) {
+                journal.commit();
+                maybeWriteSnapshot();
+            }
+            out.println("Posted " + Money.format(posted) + " interest for " + days + " day(s).");
         } catch (ParseException e) {
-            System.out.println("Invalid date format. Please try again.");
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
+        } catch (IOException e) {
+            out.println("Could not write to the journal: " + e.getMessage());
         }
     }
 
-    private static Date getInputDate(Scanner scanner, String message) throws ParseException {
-        System.out.print(message);
-        return DATE_FORMAT.parse(scanner.nextLine());
+    private int getInputDate(String message) throws ParseException {
+        return parseDate(getInputString(message));
+    }
+
+    // Commands read every answer before parsing any of them, so a bad date never leaves answers behind in a script
+    private static int parseDate(String input) throws ParseException {
+        String text = input.trim();
+        if (!Metrics.ENABLED) {
+            return DateParser.parseEpochDay(text);
+        }
+        long start = System.nanoTime();
+        try {
+            return DateParser.parseEpochDay(text);
+        } finally {
+            Metrics.PARSE_DATE.recordSince(start);
+        }
     }
 
-    private static double getInputIncome(Scanner scanner) {
-        System.out.print("Enter income: ");
-        double income = scanner.nextDouble();
-        scanner.nextLine(); // Consume newline
+    private double getInputIncome() {
+        prompt("Enter income: ");
+        double income = input.readDouble();
         return income;
     }
 
-    private static TransactionDetails getInputTransactionDetails(Scanner scanner) throws ParseException {
-        System.out.print("Enter date (yyyy-MM-dd): ");
-        Date date = DATE_FORMAT.parse(scanner.nextLine());
+    private TransactionDetails getInputTransactionDetails() {
+        String date = getInputString("Enter date (yyyy-MM-dd): ");
 
-        System.out.print("Enter amount: ");
-        double amount = scanner.nextDouble();
-        scanner.nextLine(); // Consume newline
+        prompt("Enter amount: ");
+        double amount = input.readDouble();
 
-        System.out.print("Enter description: ");
-        String description = scanner.nextLine();
+        prompt("Enter description: ");
+        String description = input.readLine();
 
         return new TransactionDetails(date, amount, description);
     }
 
     private static class TransactionDetails {
-        private Date date;
+        private String date;
         private double amount;
         private String description;
 
-        public TransactionDetails(Date date, double amount, String description) {
+        public TransactionDetails(String date, double amount, String description) {
             this.date = date;
             this.amount = amount;
             this.description = description;
         }
 
-        public Date getDate() {
-            return date;
+        public int getDate() throws ParseException {
+            return parseDate(date);
         }
 
         public double getAmount() {
@@ -347,97 +5251,358 @@ class PersonalBudgetTracker {
 
     private void addIncome() {
         if (budget == null || account == null) {
-            System.out.println("Please set the budget and create an account first.");
+            out.println("Please set the budget and create an account first.");
             return;
         }
         try {
-            TransactionDetails details = getInputTransactionDetails(scanner);
+            TransactionDetails details = getInputTransactionDetails();
+            if (!Money.isValid(details.getAmount())) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
             Transaction income = new IncomeTransaction(details.getDate(), details.getAmount(),
                     details.getDescription());
-            income.processTransaction(account);
-            budget.setIncome(budget.getIncome() + details.getAmount());
+            BudgetSchedule.Rollover rollover = prepareRollover(income.getEpochDay());
+            Budget target = rollover != null ? rollover.getBudget() : budget;
+            synchronized (ledgerLock()) {
+                if (!target.addTransaction(income, account)) {
+                    out.println("Date is outside the budget period.");
+                    return;
+                }
+                completeRollover(rollover);
+                recordTransaction(income, null);
+            }
 
-            System.out.println("Income added successfully.");
+            out.println("Income added successfully.");
         } catch (ParseException e) {
-            System.out.println("Invalid date format. Please try again.");
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
         }
     }
 
     private void addExpense() {
         if (budget == null || account == null) {
-            System.out.println("Please set the budget and create an account first.");
+            out.println("Please set the budget and create an account first.");
             return;
         }
         try {
-            TransactionDetails details = getInputTransactionDetails(scanner);
+            TransactionDetails details = getInputTransactionDetails();
+            String category = getInputString("Enter category (leave blank for none): ").trim();
+            if (!Money.isValid(details.getAmount())) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
             Transaction expense = new ExpenseTransaction(details.getDate(), details.getAmount(),
                     details.getDescription());
-            expense.processTransaction(account);
-            budget.addTransaction(expense, account);
+            BudgetSchedule.Rollover rollover = prepareRollover(expense.getEpochDay());
+            Budget target = rollover != null ? rollover.getBudget() : budget;
+            int result;
+            synchronized (ledgerLock()) {
+                result = target.postTransaction(expense, account, category);
+                if (result == Budget.POSTED) {
+                    completeRollover(rollover);
+                    recordTransaction(expense, category);
+                }
+            }
+            if (result == Budget.OUTSIDE_PERIOD) {
+                out.println("Date is outside the budget period.");
+                return;
+            } else if (result == Budget.INSUFFICIENT_FUNDS) {
+                out.println("Insufficient funds: this expense would exceed the account's overdraft limit.");
+                return;
+            }
 
-            System.out.println("Expense added successfully.");
+            out.println("Expense added successfully.");
         } catch (ParseException e) {
-            System.out.println("Invalid date format. Please try again.");
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
+        }
+    }
+
+    private void recordTransaction(Transaction transaction, String category) {
+        record(() -> journal.appendTransaction(TransactionStore.typeOf(transaction), account.getAccountNumber(),
+                transaction.getEpochDay(),
+                transaction.getAmountMinor(), transaction.getDescription(), category, !isSession()));
+    }
+
+    private CsvImporter newImporter(boolean deduplicate) {
+        CsvImporter importer = new CsvImporter(budget, account, journal, !isSession(), deduplicate);
+        importer.rollPeriodsWith(this::prepareRollover, this::completeRollover);
+        return importer;
+    }
+
+    private void importStatement() {
+        if (budget == null || account == null) {
+            out.println("Please set the budget and create an account first.");
+            return;
+        }
+        String file = getInputString("Enter CSV file path (date,amount,description): ");
+        try {
+            CsvImporter.ImportResult result = newImporter(CsvImporter.DEDUPLICATE).importFile(Paths.get(file));
+            if (journal != null) {
+                journal.commit();
+                maybeWriteSnapshot();
+            }
+            out.println(result.getSummary());
+            for (String rejectedLine : result.getRejectedLines()) {
+                out.println("  " + rejectedLine);
+            }
+        } catch (IOException | InvalidPathException e) {
+            out.println("Could not read " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void addTransactionsInBulk() {
+        if (budget == null || account == null) {
+            out.println("Please set the budget and create an account first.");
+            return;
+        }
+        if (interactive) {
+            out.println("Enter one transaction per line as date,amount,description (negative amounts are expenses).");
+            out.println("Finish with an empty line.");
+        }
+        // Typed rows are new purchases, not a re-imported statement, so none of them is skipped as a duplicate
+        CsvImporter importer = newImporter(false);
+        try {
+            importer.begin();
+            String line;
+            while (!(line = input.readLine()).isEmpty()) {
+                importer.acceptLine(line);
+            }
+            CsvImporter.ImportResult result = importer.finish();
+            if (journal != null) {
+                journal.commit();
+                maybeWriteSnapshot();
+            }
+            out.println(result.getSummary());
+            for (String rejectedLine : result.getRejectedLines()) {
+                out.println("  " + rejectedLine);
+            }
+        } catch (IOException e) {
+            out.println("Could not write to the journal: " + e.getMessage());
         }
     }
 
     private void viewBudgetSummary() {
         if (budget == null) {
-            System.out.println("Please set the budget first.");
+            out.println("Please set the budget first.");
         } else {
-            System.out.println(budget.getBudgetSummary());
+            out.println(budget.getBudgetSummary());
         }
     }
 
-    private static String getInputString(Scanner scanner, String prompt) {
-        System.out.print(prompt);
-        return scanner.nextLine();
+    private void viewSpendingByCategory() {
+        if (budget == null) {
+            out.println("Please set the budget first.");
+        } else if (budget.getCategories().isEmpty()) {
+            out.println("No categorized expenses yet.");
+        } else {
+            for (Category category : budget.getCategories()) {
+                out.println(category.getName() + ": " + Money.format(category.getTotalMinor()) + " ("
+                        + category.getCount() + " expenses, min " + Money.format(category.getMinMinor())
+                        + ", max " + Money.format(category.getMaxMinor()) + ")");
+            }
+        }
     }
 
-    private static double getInputDouble(Scanner scanner, String prompt) {
-        System.out.print(prompt);
-        double value = scanner.nextDouble();
-        scanner.nextLine(); // Consume newline
+    private void viewSpendingByMerchant() {
+        if (budget == null) {
+            out.println("Please set the budget first.");
+            return;
+        }
+        Map<String, Long> spend = budget.getSpendByMerchantMinor(TOP_MERCHANTS);
+        if (spend.isEmpty()) {
+            out.println("No expenses yet.");
+        }
+        for (Map.Entry<String, Long> entry : spend.entrySet()) {
+            out.println(entry.getKey() + ": " + Money.format(entry.getValue()));
+        }
+    }
+
+    private void viewMonthlyReport() {
+        if (budget == null) {
+            out.println("Please set the budget first.");
+            return;
+        }
+        out.print(budget.getReport().format());
+    }
+
+    private void addSpendingAlert() {
+        if (budget == null) {
+            out.println("Please set the budget first.");
+            return;
+        }
+        String category = getInputString("Enter category (leave blank for the whole budget): ").trim();
+        String threshold = getInputString("Enter threshold as a percentage of income (e.g. 80%) "
+                + "or an amount: ").trim();
+        try {
+            if (threshold.endsWith("%")) {
+                double percent = Double.parseDouble(threshold.substring(0, threshold.length() - 1).trim());
+                if (!(percent > 0)) {
+                    throw new NumberFormatException(threshold);
+                }
+                budget.addThreshold(category, percent);
+                if (!isSession()) {
+                    record(() -> journal.appendAlertAdded(category, percent, 0));
+                }
+            } else {
+                double amount = Double.parseDouble(threshold);
+                if (!(amount > 0) || !Money.isValid(amount)) {
+                    throw new NumberFormatException(threshold);
+                }
+                budget.addAbsoluteThreshold(category, Money.ofMajor(amount));
+                if (!isSession()) {
+                    record(() -> journal.appendAlertAdded(category, 0, Money.ofMajor(amount)));
+                }
+            }
+            out.println("Alert added successfully.");
+        } catch (NumberFormatException e) {
+            out.println("Invalid threshold. Please try again.");
+        }
+    }
+
+    private void viewTransactionsBetweenDates() {
+        if (budget == null) {
+            out.println("Please set the budget first.");
+            return;
+        }
+        try {
+            String fromText = getInputString("Enter from date (yyyy-MM-dd): ");
+            int to = getInputDate("Enter to date (yyyy-MM-dd): ");
+            int from = parseDate(fromText);
+            StringBuilder line = new StringBuilder(96);
+            budget.forEachTransactionBetween(from, to, view -> {
+                line.setLength(0);
+                out.println(view.appendTransactionDetails(line));
+            });
+            out.println("Income: " + Money.format(budget.getIncomeBetweenMinor(from, to))
+                    + ", Expenses: " + Money.format(budget.getExpensesBetweenMinor(from, to)));
+            for (Map.Entry<String, Long> entry : budget.getSpendByCategoryBetweenMinor(from, to).entrySet()) {
+                out.println("  " + entry.getKey() + ": " + Money.format(entry.getValue()));
+            }
+        } catch (ParseException e) {
+            out.println("Invalid date format (" + e.getMessage() + "). Please try again.");
+        }
+    }
+
+    private void prompt(String message) {
+        if (interactive) {
+            out.print(message);
+        }
+    }
+
+    private String getInputString(String prompt) {
+        prompt(prompt);
+        return input.readLine();
+    }
+
+    private double getInputDouble(String prompt) {
+        prompt(prompt);
+        double value = input.readDouble();
         return value;
     }
 
 
     private void createAccount() {
-        System.out.println("1. Create Savings Account");
-        System.out.println("2. Create Checking Account");
-        System.out.print("Choose account type: ");
-        int accountType = scanner.nextInt();
-        scanner.nextLine();  // Consume newline
+        if (interactive) {
+            out.println("1. Create Savings Account");
+            out.println("2. Create Checking Account");
+        }
+        prompt("Choose account type: ");
+        int accountType = input.readInt();
 
-        String accountNumber = getInputString(scanner, "Enter account number: ");
-        double initialBalance = getInputDouble(scanner, "Enter initial balance: ");
+        String accountNumber = getInputString("Enter account number: ");
+        double initialBalance = getInputDouble("Enter initial balance: ");
 
         if (accountType == 1) {
-            System.out.print("Enter interest rate: ");
-            double interestRate = scanner.nextDouble();
-            scanner.nextLine();  // Consume newline
-            account = new SavingsAccount(accountNumber, initialBalance, interestRate);
+            prompt("Enter interest rate: ");
+            double interestRate = input.readDouble();
+            if (!Money.isValid(initialBalance) || !Money.isValid(interestRate)) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
+            synchronized (ledgerLock()) {
+                if (registerAccount(new SavingsAccount(accountNumber, initialBalance, interestRate))) {
+                    record(() -> journal.appendAccountCreated(LedgerJournal.SAVINGS, accountNumber,
+                            Money.ofMajor(initialBalance), interestRate));
+                }
+            }
         } else if (accountType == 2) {
-            System.out.print("Enter overdraft limit: ");
-            double overdraftLimit = scanner.nextDouble();
-            scanner.nextLine();  // Consume newline
-            account = new CheckingAccount(accountNumber, initialBalance, overdraftLimit);
+            prompt("Enter overdraft limit: ");
+            double overdraftLimit = input.readDouble();
+            if (!Money.isValid(initialBalance) || !Money.isValid(overdraftLimit)) {
+                out.println("Invalid amount. Please try again.");
+                return;
+            }
+            synchronized (ledgerLock()) {
+                if (registerAccount(new CheckingAccount(accountNumber, initialBalance, overdraftLimit))) {
+                    record(() -> journal.appendAccountCreated(LedgerJournal.CHECKING, accountNumber,
+                            Money.ofMajor(initialBalance), overdraftLimit));
+                }
+            }
         } else {
-            System.out.println("Invalid account type. Please try again.");
+            out.println("Invalid account type. Please try again.");
+        }
+    }
+
+    // Accounts are shared between server sessions, so a session can work with one another session created
+    private void selectAccount() {
+        String accountNumber = getInputString("Enter account number: ");
+        Account selected = user.getAccount(accountNumber);
+        if (selected == null) {
+            out.println("No account with that number.");
+            return;
+        }
+        account = selected;
+        if (!isSession()) {
+            record(() -> journal.appendAccountSelected(accountNumber));
+        }
+        out.println("Selected " + selected.getAccountInfo());
+    }
+
+    private boolean registerAccount(Account created) {
+        if (!user.addAccount(created)) {
+            out.println("An account with that number already exists.");
+            return false;
         }
+        account = created;
+        return true;
     }
 
     private void displayAccountInfo() {
         if (account != null) {
-            account.displayAccountInfo();
+            out.println(account.getAccountInfo());
         } else {
-            System.out.println("Please create an account first.");
+            out.println("Please create an account first.");
+        }
+    }
+
+    private void viewMetrics() {
+        if (budget != null) {
+            out.println(budget.getQueryCache().getSummary());
+        }
+        if (!Metrics.ENABLED) {
+            out.println("Metrics are disabled. Start the tracker with -Dbudget.metrics=true to collect them.");
+            return;
         }
+        out.print(Metrics.report());
     }
 
     private void exitProgram() {
-        System.out.println("Exiting the program. Goodbye!");
-        scanner.close();
-        scanner.nextLine();  
+        printAlerts();
+        out.println("Exiting the program. Goodbye!");
+        running = false;
+        if (!ownsResources) {
+            // A session's budget ends with its connection
+            dropBudget();
+            return;
+        }
+        if (journal != null) {
+            writeSnapshot();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                out.println("Could not close the journal: " + e.getMessage());
+            }
+        }
+        input.close();
     }
 }
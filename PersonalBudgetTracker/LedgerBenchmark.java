@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class LedgerBenchmark {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final int ITERATIONS = 5;
+    private static final double REGRESSION_THRESHOLD = 0.10;
+    private static final int DAY = DateParser.fromCivil(2024, 1, 1);
+    // Large enough that no run reaches it, so every benchmarked expense is accepted
+    private static final double OVERDRAFT_LIMIT = 1e15;
+
+    private static volatile long sink;
+
+    interface Operation {
+        long run(long iteration) throws Exception;
+    }
+
+    private static class Result {
+        private final String name;
+        private final String parameter;
+        private final double opsPerSecond;
+        private final double opsPerSecondError;
+        private final double bytesPerOp;
+        private final long gcCount;
+
+        Result(String name, String parameter, double opsPerSecond, double opsPerSecondError, double bytesPerOp,
+               long gcCount) {
+            this.name = name;
+            this.parameter = parameter;
+            this.opsPerSecond = opsPerSecond;
+            this.opsPerSecondError = opsPerSecondError;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+        }
+
+        String key() {
+            return name + "," + parameter;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path baseline = null;
+        Path save = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--baseline") && i + 1 < args.length) {
+                baseline = Paths.get(args[++i]);
+            } else if (args[i].equals("--save") && i + 1 < args.length) {
+                save = Paths.get(args[++i]);
+            } else {
+                System.out.println("Usage: java LedgerBenchmark [--baseline file.csv] [--save file.csv]");
+                return;
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        benchmarkAddTransaction(results);
+        benchmarkAddBatch(results);
+        for (int history : new int[] {1_000, 100_000, 1_000_000}) {
+            benchmarkBudgetQueries(results, history);
+        }
+        for (int accounts : new int[] {10, 1_000, 100_000}) {
+            benchmarkGetAccount(results, accounts);
+        }
+        benchmarkTransactionConstruction(results);
+        benchmarkInterestAccrual(results);
+        benchmarkDateParsing(results);
+        benchmarkConcurrentDeposits(results);
+
+        printResults(results, baseline == null ? null : readBaseline(baseline));
+        if (save != null) {
+            writeResults(save, results);
+            System.out.println("Saved results to " + save);
+        }
+    }
+
+    private static void benchmarkAddTransaction(List<Result> results) throws Exception {
+        Account account = new CheckingAccount("bench", 0, OVERDRAFT_LIMIT);
+        Transaction expense = new ExpenseTransaction(DAY, 12.5, "GROCERY STORE #123");
+        Budget[] budget = {newBudget()};
+        results.add(measure("Budget.addTransaction", "-", iteration -> {
+            if ((iteration & ((1 << 20) - 1)) == 0) {
+                budget[0] = newBudget();
+            }
+            budget[0].addTransaction(expense, account);
+            return iteration;
+        }));
+    }
+
+    private static void benchmarkAddBatch(List<Result> results) throws Exception {
+        int batchSize = 4096;
+        Account account = new CheckingAccount("bench", 0, OVERDRAFT_LIMIT);
+        TransactionBatch batch = new TransactionBatch(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.addExpense(DAY + i % 365, 100 + i % 5000, "merchant " + i % 100);
+        }
+        Budget[] budget = {newBudget()};
+        long[] rows = {0};
+        results.add(measure("Budget.addBatch", "batch=" + batchSize, iteration -> {
+            if ((rows[0] += batchSize) > 1 << 22) {
+                budget[0] = newBudget();
+                rows[0] = batchSize;
+            }
+            return budget[0].addBatch(batch, account);
+        }, batchSize));
+    }
+
+    private static void benchmarkBudgetQueries(List<Result> results, int history) throws Exception {
+        Budget budget = newBudget();
+        Account account = new CheckingAccount("bench", 0, OVERDRAFT_LIMIT);
+        for (int i = 0; i < history; i++) {
+            budget.addRecord(TransactionStore.EXPENSE, DAY + i % 365, 100 + i % 5000, "merchant " + i % 100,
+                    account);
+        }
+        String parameter = "history=" + history;
+        results.add(measure("Budget.getBudgetSummary", parameter, iteration -> budget.getBudgetSummary().length()));
+        results.add(measure("Budget.isBudgetExceeded", parameter, iteration -> budget.isBudgetExceeded() ? 1 : 0));
+        if (history >= 1_000_000) {
+            results.add(measure("ReportEngine.sequential", parameter,
+                    iteration -> ReportEngine.sequential().run(budget).getExpensesMinor(0), history));
+            results.add(measure("ReportEngine.parallel", parameter,
+                    iteration -> ReportEngine.parallel().run(budget).getExpensesMinor(0), history));
+        }
+    }
+
+    private static void benchmarkGetAccount(List<Result> results, int accounts) throws Exception {
+        User user = new User("bench", "");
+        String[] numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            numbers[i] = "ACC-" + i;
+            user.addAccount(new SavingsAccount(numbers[i], 0, 1));
+        }
+        results.add(measure("User.getAccount", "accounts=" + accounts,
+                iteration -> user.getAccount(numbers[(int) (iteration % accounts)]).getBalanceMinor()));
+    }
+
+    private static void benchmarkTransactionConstruction(List<Result> results) throws Exception {
+        results.add(measure("Transaction.new", "-",
+                iteration -> new ExpenseTransaction(DAY + (int) (iteration & 255), 9.99, "COFFEE").getEpochDay()));
+    }
+
+    private static void benchmarkInterestAccrual(List<Result> results) throws Exception {
+        int accounts = 1_000_000;
+        long[] balances = new long[accounts];
+        double[] rates = new double[accounts];
+        for (int i = 0; i < accounts; i++) {
+            balances[i] = 1_000 + i % 10_000_000;
+            rates[i] = (i % 500) / 100.0;
+        }
+        long[] interest = new long[accounts];
+        results.add(measure("InterestAccrualEngine.accrue", "accounts=" + accounts, iteration -> {
+            InterestAccrualEngine.parallel().accrue(balances, rates, 1, interest);
+            return interest[(int) (iteration % accounts)];
+        }, accounts));
+    }
+
+    private static void benchmarkDateParsing(List<Result> results) throws Exception {
+        String[] texts = new String[365];
+        byte[][] bytes = new byte[365][];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = java.time.LocalDate.ofEpochDay(DAY + i).toString();
+            bytes[i] = texts[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        results.add(measure("DateParser.parseEpochDay", "text",
+                iteration -> DateParser.parseEpochDay(texts[(int) (iteration % texts.length)])));
+        results.add(measure("DateParser.parseEpochDay", "bytes", iteration -> {
+            byte[] date = bytes[(int) (iteration % bytes.length)];
+            return DateParser.parseEpochDay(date, 0, date.length);
+        }));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        results.add(measure("SimpleDateFormat.parse", "reference",
+                iteration -> format.parse(texts[(int) (iteration % texts.length)]).getTime()));
+    }
+
+    private static void benchmarkConcurrentDeposits(List<Result> results) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long perThread = 2_000_000;
+        Account account = new CheckingAccount("bench", 0, OVERDRAFT_LIMIT);
+        results.add(measure("Account.depositMinor", "threads=" + threads, iteration -> {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (long i = 0; i < perThread; i++) {
+                        account.depositMinor(1);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return account.getBalanceMinor();
+        }, threads * perThread));
+        if (account.getBalanceMinor() % (threads * perThread) != 0) {
+            throw new IllegalStateException("Lost concurrent deposits: " + account.getBalanceMinor());
+        }
+    }
+
+    private static Budget newBudget() {
+        return new Budget(DAY, DAY + 365, 1_000_000);
+    }
+
+    private static Result measure(String name, String parameter, Operation operation) throws Exception {
+        return measure(name, parameter, operation, 1);
+    }
+
+    private static Result measure(String name, String parameter, Operation operation, long opsPerCall)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long iteration = 0;
+        long deadline = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < deadline) {
+            sink += operation.run(iteration++);
+        }
+
+        double[] rates = new double[ITERATIONS];
+        long totalCalls = 0;
+        long gcBefore = gcCount();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long end;
+            do {
+                sink += operation.run(iteration++);
+                calls++;
+                end = System.nanoTime();
+            } while (end - start < ITERATION_NANOS);
+            rates[i] = calls * opsPerCall * 1e9 / (end - start);
+            totalCalls += calls;
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long gcCount = gcCount() - gcBefore;
+
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / ITERATIONS;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / (ITERATIONS - 1);
+        }
+        Result result = new Result(name, parameter, mean, Math.sqrt(variance),
+                (double) allocated / (totalCalls * opsPerCall), gcCount);
+        System.out.printf(Locale.ROOT, "%-26s %-16s %,16.0f ops/s%n", name, parameter, mean);
+        return result;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void printResults(List<Result> results, Map<String, Double> baseline) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-26s %-16s %16s %12s %12s %10s %6s%n", "Benchmark", "Param", "ops/s",
+                "error", "B/op", "MB/s", "GCs");
+        for (Result result : results) {
+            double allocationRate = result.bytesPerOp * result.opsPerSecond / (1024 * 1024);
+            System.out.printf(Locale.ROOT, "%-26s %-16s %,16.0f %,12.0f %12.1f %10.1f %6d", result.name,
+                    result.parameter, result.opsPerSecond, result.opsPerSecondError, result.bytesPerOp,
+                    allocationRate, result.gcCount);
+            Double previous = baseline == null ? null : baseline.get(result.key());
+            if (previous != null && previous > 0) {
+                double change = (result.opsPerSecond - previous) / previous;
+                System.out.printf(Locale.ROOT, "  %+6.1f%%%s", change * 100,
+                        change < -REGRESSION_THRESHOLD ? "  REGRESSION" : "");
+            }
+            System.out.println();
+        }
+    }
+
+    private static Map<String, Double> readBaseline(Path path) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(path)) {
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("benchmark,")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            baseline.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+        }
+        return baseline;
+    }
+
+    private static void writeResults(Path path, List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            out.println("# java " + System.getProperty("java.version") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " cpu(s), " + System.getProperty("os.name"));
+            out.println("benchmark,param,ops_per_s,error,bytes_per_op,gc_count");
+            for (Result result : results) {
+                out.printf(Locale.ROOT, "%s,%s,%.1f,%.1f,%.2f,%d%n", result.name, result.parameter,
+                        result.opsPerSecond, result.opsPerSecondError, result.bytesPerOp, result.gcCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LedgerStressTest {
+    private static final int DAY = DateParser.fromCivil(2024, 1, 1);
+    private static final long SEED = 20240101L;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        checkRunningTotals(100_000, 2_000);
+        checkConcurrentBalance(Math.max(4, Runtime.getRuntime().availableProcessors()), 500_000);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+
+    private static void checkRunningTotals(int transactions, int removals) {
+        Random random = new Random(SEED);
+        Budget budget = new Budget(DAY, DAY + 365, 1_000);
+        Account account = new SavingsAccount("stress", 0, 1);
+        List<Transaction> posted = new ArrayList<>();
+        long income = 0;
+        long expenses = 0;
+        for (int i = 0; i < transactions; i++) {
+            int epochDay = DAY + random.nextInt(366);
+            long amountMinor = 1 + random.nextInt(100_000);
+            Transaction transaction = random.nextInt(3) == 0
+                    ? IncomeTransaction.ofMinor(epochDay, amountMinor, "salary " + i % 7)
+                    : ExpenseTransaction.ofMinor(epochDay, amountMinor, "merchant " + i % 101);
+            budget.addTransaction(transaction, account, i % 2 == 0 ? "category " + i % 13 : null);
+            posted.add(transaction);
+            if (transaction instanceof IncomeTransaction) {
+                income += amountMinor;
+            } else {
+                expenses += amountMinor;
+            }
+        }
+        for (int i = 0; i < removals; i++) {
+            Transaction transaction = posted.remove(random.nextInt(posted.size()));
+            budget.removeTransaction(transaction);
+            if (transaction instanceof IncomeTransaction) {
+                income -= transaction.getAmountMinor();
+            } else {
+                expenses -= transaction.getAmountMinor();
+            }
+        }
+        TransactionStore store = budget.getTransactionStore();
+        for (int i = 0; i < removals; i++) {
+            int row = random.nextInt(store.rowCount());
+            byte type = store.getType(row);
+            if (budget.removeTransaction(row)) {
+                if (type == TransactionStore.INCOME) {
+                    income -= store.getAmountMinor(row);
+                } else {
+                    expenses -= store.getAmountMinor(row);
+                }
+            }
+        }
+        budget.setIncome(budget.getIncome() + 250);
+
+        check("Budget.verifyTotals", budget.verifyTotals(), budget.getBudgetSummary());
+        check("Budget.getTotalExpensesMinor", budget.getTotalExpensesMinor() == expenses,
+                budget.getTotalExpensesMinor() + " != " + expenses);
+        long expectedIncome = 100_000 + income + 25_000;
+        check("Budget.getIncomeMinor", budget.getIncomeMinor() == expectedIncome,
+                budget.getIncomeMinor() + " != " + expectedIncome);
+        check("Budget.isBudgetExceeded", budget.isBudgetExceeded() == expenses > expectedIncome,
+                budget.getBudgetSummary());
+        checkCategoryRollups(budget);
+        check("ReportEngine.parallel", ReportEngine.parallel().run(budget).sameTotals(
+                ReportEngine.sequential().run(budget)), "parallel report differs from the sequential one");
+    }
+
+    private static void checkCategoryRollups(Budget budget) {
+        for (Category category : budget.getCategories()) {
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            List<Transaction> expenses = category.getExpenses();
+            for (Transaction expense : expenses) {
+                total += expense.getAmountMinor();
+                min = Math.min(min, expense.getAmountMinor());
+                max = Math.max(max, expense.getAmountMinor());
+            }
+            if (category.getTotalMinor() != total || category.getCount() != expenses.size()
+                    || category.getMinMinor() != min || category.getMaxMinor() != max) {
+                check("Category rollups", false, category.getName() + ": " + category.getTotalMinor() + " != "
+                        + total);
+                return;
+            }
+        }
+        check("Category rollups", true, null);
+    }
+
+    private static void checkConcurrentBalance(int threads, int perThread) throws InterruptedException {
+        CheckingAccount unlimited = new CheckingAccount("stress-unlimited", 0, 1e12);
+        CheckingAccount limited = new CheckingAccount("stress-limited", 0, 0);
+        long[] expectedUnlimited = new long[threads];
+        long[] expectedLimited = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            workers[t] = new Thread(() -> {
+                Random random = new Random(SEED + worker);
+                for (int i = 0; i < perThread; i++) {
+                    long amountMinor = 1 + random.nextInt(10_000);
+                    Transaction transaction = random.nextBoolean()
+                            ? IncomeTransaction.ofMinor(DAY, amountMinor, "deposit")
+                            : ExpenseTransaction.ofMinor(DAY, amountMinor, "withdrawal");
+                    boolean income = transaction instanceof IncomeTransaction;
+                    if (unlimited.processTransaction(transaction) == Account.OK) {
+                        expectedUnlimited[worker] += income ? amountMinor : -amountMinor;
+                    }
+                    if (limited.processTransaction(transaction) == Account.OK) {
+                        expectedLimited[worker] += income ? amountMinor : -amountMinor;
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long unlimitedTotal = 0;
+        long limitedTotal = 0;
+        for (int t = 0; t < threads; t++) {
+            unlimitedTotal += expectedUnlimited[t];
+            limitedTotal += expectedLimited[t];
+        }
+        String parameter = " (" + threads + " threads x " + perThread + ")";
+        check("Account.processTransaction" + parameter, unlimited.getBalanceMinor() == unlimitedTotal,
+                unlimited.getBalanceMinor() + " != " + unlimitedTotal);
+        check("Account.withdrawMinor floor" + parameter,
+                limited.getBalanceMinor() == limitedTotal && limited.getBalanceMinor() >= 0,
+                limited.getBalanceMinor() + " != " + limitedTotal);
+    }
+
+    private static void check(String name, boolean passed, String detail) {
+        if (passed) {
+            System.out.println("PASS " + name);
+        } else {
+            failures++;
+            System.out.println("FAIL " + name + ": " + detail);
+        }
+    }
+}